@@ -0,0 +1,75 @@
+package org.shoushitsu.wordpress.dump;
+
+import nl.siegmann.epublib.domain.Book;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Turning the lines of a chapter into an XHTML section of an in-memory book.
+ */
+@State(Scope.Benchmark)
+public class ChapterAssemblyBenchmark {
+
+	@Param({"small", "medium", "large"})
+	public String fixture;
+
+	private List<String> lines;
+
+	@Setup
+	public void setUp() throws IOException {
+		lines = Fixtures.contentLines(Fixtures.load(fixture));
+	}
+
+	@Benchmark
+	public Book assembleChapter() {
+		BenchmarkCallback callback = new BenchmarkCallback();
+		callback.bookTitle("Example Web Serial");
+		callback.author("serialauthor");
+		callback.startChapter(1);
+		callback.chapterTitle("Chapter 1");
+		for (String line : lines) {
+			callback.chapterLine(line);
+		}
+		callback.endChapter(1);
+		return callback.getBook();
+	}
+
+	static final class BenchmarkCallback extends EpubDumperCallback {
+
+		BenchmarkCallback() {
+			super(NOPLogger.NOP_LOGGER);
+		}
+
+		BenchmarkCallback(StreamingEpubWriter writer) {
+			super(NOPLogger.NOP_LOGGER, writer);
+		}
+
+		@Override
+		public boolean impossible() {
+			throw new IllegalStateException();
+		}
+
+		@Override
+		public boolean badUrl(int index, String url) {
+			throw new IllegalStateException();
+		}
+
+		@Override
+		public void fetchException(IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		@Override
+		public void saveUnparsedPost(int index, byte[] post) {
+		}
+
+	}
+
+}
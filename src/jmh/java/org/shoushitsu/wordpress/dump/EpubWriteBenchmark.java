@@ -0,0 +1,90 @@
+package org.shoushitsu.wordpress.dump;
+
+import nl.siegmann.epublib.domain.Book;
+import nl.siegmann.epublib.epub.EpubWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Packaging a whole book, either at the end from an in-memory {@link Book}, on one thread
+ * or with a {@link ParallelEpubWriter}, or chapter by chapter with a {@link StreamingEpubWriter}.
+ */
+@State(Scope.Benchmark)
+public class EpubWriteBenchmark {
+
+	@Param({"medium", "large"})
+	public String fixture;
+
+	@Param({"20"})
+	public int chapterCount;
+
+	private List<String> lines;
+
+	private Book book;
+
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setUp() throws IOException {
+		lines = Fixtures.contentLines(Fixtures.load(fixture));
+		ChapterAssemblyBenchmark.BenchmarkCallback callback = new ChapterAssemblyBenchmark.BenchmarkCallback();
+		fill(callback);
+		book = callback.getBook();
+		pool = new ForkJoinPool();
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public void writeBook() throws IOException {
+		new EpubWriter().write(book, NULL_OUTPUT);
+	}
+
+	@Benchmark
+	public void writeBookParallel() throws IOException {
+		new ParallelEpubWriter(pool).write(book, NULL_OUTPUT);
+	}
+
+	@Benchmark
+	public void writeStreaming() throws IOException {
+		try (StreamingEpubWriter writer = new StreamingEpubWriter(NULL_OUTPUT)) {
+			fill(new ChapterAssemblyBenchmark.BenchmarkCallback(writer));
+		}
+	}
+
+	private void fill(EpubDumperCallback callback) {
+		callback.bookTitle("Example Web Serial");
+		callback.author("serialauthor");
+		for (int i = 1; i <= chapterCount; ++i) {
+			callback.startChapter(i);
+			callback.chapterTitle("Chapter " + i);
+			for (String line : lines) {
+				callback.chapterLine(line);
+			}
+			callback.endChapter(i);
+		}
+	}
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+}
@@ -0,0 +1,89 @@
+package org.shoushitsu.wordpress.dump;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Posts in the format that {@link DumpChain} saves as {@code .orig} files. A fixture is either the name
+ * of one bundled with the benchmarks ({@code small}, {@code medium}, {@code large}) or the path
+ * to a saved post, e.g. {@code -p fixture=/tmp/dump/000042.orig}.
+ */
+final class Fixtures {
+
+	static byte[] load(String fixture) throws IOException {
+		Path path = Paths.get(fixture);
+		if (Files.isRegularFile(path)) {
+			return Files.readAllBytes(path);
+		}
+		try (InputStream in = Fixtures.class.getResourceAsStream("fixtures/" + fixture + ".orig")) {
+			if (in == null) {
+				throw new IOException("No such fixture: " + fixture);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * @return the content lines of the post that aren't navigation links, as the callback gets them.
+	 */
+	static List<String> contentLines(byte[] post) throws IOException {
+		final List<String> lines = new ArrayList<>();
+		PostJsonExtractor.extract(new ByteArrayInputStream(post), new BlankHandler() {
+			@Override
+			public void contentLine(CharSequence line) {
+				if (!NavigationLinkScanner.DEFAULT.scan(line, IGNORED_LINK)) {
+					lines.add(line.toString());
+				}
+			}
+		});
+		return lines;
+	}
+
+	static final NavigationLinkScanner.Listener IGNORED_LINK = new NavigationLinkScanner.Listener() {
+		@Override
+		public void nextLink(String url) {
+			// only the lines are needed
+		}
+	};
+
+	static class BlankHandler implements PostJsonExtractor.Handler {
+
+		@Override
+		public void title(String title) {
+		}
+
+		@Override
+		public void author(String niceName) {
+		}
+
+		@Override
+		public void siteName(String name) {
+		}
+
+		@Override
+		public void modified(String modified) {
+		}
+
+		@Override
+		public void contentLine(CharSequence line) {
+		}
+
+	}
+
+	private Fixtures() {
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * What the dumper does with a fetched post: extracting the fields and content lines,
+ * and taking the navigation links out of the lines.
+ */
+@State(Scope.Benchmark)
+public class PostParsingBenchmark {
+
+	@Param({"small", "medium", "large"})
+	public String fixture;
+
+	private byte[] post;
+
+	@Setup
+	public void setUp() throws IOException {
+		post = Fixtures.load(fixture);
+	}
+
+	@Benchmark
+	public void extract(final Blackhole blackhole) throws IOException {
+		PostJsonExtractor.extract(new ByteArrayInputStream(post), new Fixtures.BlankHandler() {
+			@Override
+			public void title(String title) {
+				blackhole.consume(title);
+			}
+
+			@Override
+			public void contentLine(CharSequence line) {
+				blackhole.consume(line);
+			}
+		});
+	}
+
+	@Benchmark
+	public void extractAndScan(final Blackhole blackhole) throws IOException {
+		final NavigationLinkScanner.Listener listener = new NavigationLinkScanner.Listener() {
+			@Override
+			public void nextLink(String url) {
+				blackhole.consume(url);
+			}
+		};
+		PostJsonExtractor.extract(new ByteArrayInputStream(post), new Fixtures.BlankHandler() {
+			@Override
+			public void title(String title) {
+				blackhole.consume(title);
+			}
+
+			@Override
+			public void contentLine(CharSequence line) {
+				if (!NavigationLinkScanner.DEFAULT.scan(line, listener)) {
+					blackhole.consume(line.toString());
+				}
+			}
+		});
+	}
+
+}
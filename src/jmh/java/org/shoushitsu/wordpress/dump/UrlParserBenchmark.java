@@ -0,0 +1,23 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class UrlParserBenchmark {
+
+	@Param({
+			"http://example-serial.wordpress.com/2014/03/02/chapter-2/",
+			"example-serial.wordpress.com/2014/03/02/a-rather-longer-slug-for-an-interlude-chapter",
+			"http://example.com/not/a/post/"
+	})
+	public String url;
+
+	@Benchmark
+	public WordpressUrlParser.SiteAndSlug parsePostUrl() {
+		return WordpressUrlParser.parsePostUrl(url);
+	}
+
+}
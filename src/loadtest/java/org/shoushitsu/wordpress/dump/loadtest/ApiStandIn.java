@@ -0,0 +1,459 @@
+package org.shoushitsu.wordpress.dump.loadtest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.simpleframework.http.core.ContainerServer;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the WordPress API that serves recorded posts, so that the server can be load tested
+ * without touching wordpress.com.
+ * <p>
+ * Posts are read from a directory laid out like a {@link org.shoushitsu.wordpress.dump.ChapterCache}, with
+ * a {@code <site>/<slug>.post} file per post, so the chapter cache of a real dump doubles as a recording.
+ * Posts that have moved are listed in {@code <site>/redirects.properties} as {@code <old slug>=<new post URL>}:
+ * like on wordpress.com, the API answers 404 for them, and a HEAD request for the old post page answers 301.
+ * <p>
+ * Post pages are on wordpress.com hosts, so the server has to use the stand-in as its HTTP proxy
+ * ({@code -Dwpdump.http.proxy=<host>:<port>}) as well as its API base
+ * ({@code -Dwpdump.apiBase=http://<host>:<port>/rest/v1}).
+ * <p>
+ * Like the API, the stand-in keeps only the top-level post fields listed in {@code fields}, if given,
+ * and compresses posts for clients that accept gzip.
+ * <p>
+ * Each response is delayed by {@code wpdump.standin.latencyMillis} plus up to {@code wpdump.standin.jitterMillis},
+ * picked uniformly at random, and a {@code wpdump.standin.errorRate} fraction of the responses are 500 errors.
+ */
+public class ApiStandIn implements Container {
+
+	private static final Logger log = LoggerFactory.getLogger(ApiStandIn.class);
+
+	private static final String POST_SUFFIX = ".post";
+
+	private static final String REDIRECTS_FILE = "redirects.properties";
+
+	private static final Pattern API_PATH_PATTERN = Pattern.compile(".*/sites/([^/]+)/posts/(?:slug:([^/]+))?/?");
+
+	private static final Pattern PAGE_PATH_PATTERN = Pattern.compile("/\\d{4}/\\d{2}/\\d{2}/([^/]+)/?");
+
+	private static final byte[] UNKNOWN_POST = "{\"error\":\"unknown_post\",\"message\":\"Unknown post\"}".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] UNKNOWN_SITE = "{\"error\":\"unknown_blog\",\"message\":\"Unknown blog\"}".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] SERVER_ERROR = "{\"error\":\"unknown_error\",\"message\":\"Injected error\"}".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final class Post {
+
+		/**
+		 * As the API returns it without {@code meta=site}.
+		 */
+		final JSONObject json;
+
+		JSONObject withSiteJson;
+
+		final byte[] modified;
+
+		final String etag;
+
+		/**
+		 * Bodies by the fields, site metadata and compression asked for, made as they are first asked for.
+		 */
+		final ConcurrentMap<String, byte[]> bodyByVariant = new ConcurrentHashMap<>();
+
+		Post(JSONObject json) {
+			this.json = json;
+			withSiteJson = json;
+			JSONObject modifiedJson = new JSONObject();
+			modifiedJson.put("modified", json.opt("modified"));
+			modified = toBytes(modifiedJson);
+			etag = '"' + hash(toBytes(json)) + '"';
+		}
+
+		byte[] getBody(boolean withSite, String fields, boolean gzip) throws IOException {
+			String variant = withSite + ":" + fields + ':' + gzip;
+			byte[] body = bodyByVariant.get(variant);
+			if (body == null) {
+				body = toBytes(select(withSite ? withSiteJson : json, fields));
+				if (gzip) {
+					body = compress(body);
+				}
+				bodyByVariant.putIfAbsent(variant, body);
+			}
+			return body;
+		}
+
+	}
+
+	private static final class Site {
+
+		/**
+		 * Sorted, for a stable post listing.
+		 */
+		final Map<String, Post> postBySlug = new TreeMap<>();
+
+		final Properties redirects = new Properties();
+
+	}
+
+	private final Map<String, Site> siteByName;
+
+	private final ScheduledExecutorService executor;
+
+	private final long latencyMillis;
+
+	private final long jitterMillis;
+
+	private final double errorRate;
+
+	private ApiStandIn(
+			Map<String, Site> siteByName,
+			ScheduledExecutorService executor,
+			long latencyMillis,
+			long jitterMillis,
+			double errorRate
+	) {
+		this.siteByName = siteByName;
+		this.executor = executor;
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.errorRate = errorRate;
+	}
+
+	public static void main(String[] args) {
+		byte exitCode = main0(args);
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+
+	private static byte main0(String[] args) {
+		if (args.length != 2) {
+			System.err.println("Arguments: <port to listen on> <recorded posts dir>");
+			return 0;
+		}
+		int port;
+		try {
+			port = Integer.parseInt(args[0]);
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid port number: " + args[0]);
+			return 1;
+		}
+		Map<String, Site> siteByName;
+		try {
+			siteByName = load(Paths.get(args[1]));
+		} catch (InvalidPathException | IOException | JSONException e) {
+			log.error("Failed to load the recorded posts", e);
+			return 1;
+		}
+
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+				Integer.getInteger("wpdump.standin.threads", Runtime.getRuntime().availableProcessors())
+		);
+		ApiStandIn standIn = new ApiStandIn(
+				siteByName,
+				executor,
+				Long.getLong("wpdump.standin.latencyMillis", 0),
+				Long.getLong("wpdump.standin.jitterMillis", 0),
+				Double.parseDouble(System.getProperty("wpdump.standin.errorRate", "0"))
+		);
+
+		final Connection connection;
+		try {
+			connection = new SocketConnection(new ContainerServer(standIn));
+			connection.connect(new InetSocketAddress(port));
+		} catch (IOException e) {
+			log.error("Failed to start the server", e);
+			executor.shutdownNow();
+			return 1;
+		}
+		log.info("Started the API stand-in on port {}", port);
+
+		final CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					log.error("Error while shutting the server down", e);
+				}
+				stopped.countDown();
+			}
+		});
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			log.error("Interrupted while waiting for shutdown", e);
+		}
+		executor.shutdownNow();
+		return 0;
+	}
+
+	private static Map<String, Site> load(Path root) throws IOException {
+		Map<String, Site> siteByName = new HashMap<>();
+		int postCount = 0;
+		try (DirectoryStream<Path> siteDirs = Files.newDirectoryStream(root)) {
+			for (Path siteDir : siteDirs) {
+				if (!Files.isDirectory(siteDir)) {
+					continue;
+				}
+				Site site = new Site();
+				JSONObject siteMeta = null;
+				try (DirectoryStream<Path> postFiles = Files.newDirectoryStream(siteDir, '*' + POST_SUFFIX)) {
+					for (Path postFile : postFiles) {
+						String fileName = decode(postFile.getFileName().toString());
+						String slug = fileName.substring(0, fileName.length() - POST_SUFFIX.length());
+						JSONObject json = new JSONObject(new String(Files.readAllBytes(postFile), StandardCharsets.UTF_8));
+						if (!json.has("slug")) {
+							json.put("slug", slug);
+						}
+						// only the first chapter of a dump is fetched with site metadata, so spread it to all posts
+						JSONObject meta = json.optJSONObject("meta");
+						if (meta != null && meta.has("data")) {
+							JSONObject site0 = meta.getJSONObject("data").optJSONObject("site");
+							if (site0 != null) {
+								siteMeta = site0;
+							}
+							meta.remove("data");
+						}
+						site.postBySlug.put(slug, new Post(json));
+					}
+				}
+				Path redirectsFile = siteDir.resolve(REDIRECTS_FILE);
+				if (Files.exists(redirectsFile)) {
+					try (InputStream in = Files.newInputStream(redirectsFile)) {
+						site.redirects.load(in);
+					}
+				}
+				if (siteMeta != null) {
+					for (Post post : site.postBySlug.values()) {
+						JSONObject json = new JSONObject(post.json, JSONObject.getNames(post.json));
+						JSONObject meta = json.optJSONObject("meta");
+						meta = meta == null ? new JSONObject() : new JSONObject(meta, JSONObject.getNames(meta));
+						meta.put("data", new JSONObject(Collections.singletonMap("site", siteMeta)));
+						json.put("meta", meta);
+						post.withSiteJson = json;
+					}
+				}
+				String siteName = decode(siteDir.getFileName().toString());
+				siteByName.put(siteName, site);
+				postCount += site.postBySlug.size();
+				log.info(
+						"Loaded {} posts and {} redirects of site {}{}",
+						site.postBySlug.size(),
+						site.redirects.size(),
+						siteName,
+						siteMeta == null ? ", without site metadata" : ""
+				);
+			}
+		}
+		log.info("Loaded {} posts of {} sites", postCount, siteByName.size());
+		return siteByName;
+	}
+
+	@Override
+	public void handle(final Request req, final Response resp) {
+		long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+		if (delay <= 0) {
+			respond(req, resp);
+			return;
+		}
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				respond(req, resp);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void respond(Request req, Response resp) {
+		try {
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				write(req, resp, 500, SERVER_ERROR);
+				return;
+			}
+			String path = req.getPath().getPath();
+			Matcher apiMatcher = API_PATH_PATTERN.matcher(path);
+			if (apiMatcher.matches()) {
+				Site site = siteByName.get(apiMatcher.group(1));
+				if (site == null) {
+					write(req, resp, 404, UNKNOWN_SITE);
+				} else if (apiMatcher.group(2) == null) {
+					write(req, resp, 200, listPosts(site, req));
+				} else {
+					getPost(req, resp, site.postBySlug.get(apiMatcher.group(2)));
+				}
+				return;
+			}
+			Matcher pageMatcher = PAGE_PATH_PATTERN.matcher(path);
+			Site site = siteByName.get(getHost(req));
+			if (pageMatcher.matches() && site != null) {
+				String slug = pageMatcher.group(1);
+				String movedTo = site.redirects.getProperty(slug);
+				if (movedTo != null) {
+					resp.setValue("Location", movedTo);
+					write(req, resp, 301, EMPTY);
+				} else {
+					write(req, resp, site.postBySlug.containsKey(slug) ? 200 : 404, EMPTY);
+				}
+				return;
+			}
+			write(req, resp, 404, EMPTY);
+		} catch (IOException e) {
+			log.warn("Error while writing a response", e);
+		}
+	}
+
+	private void getPost(Request req, Response resp, Post post) throws IOException {
+		if (post == null) {
+			write(req, resp, 404, UNKNOWN_POST);
+			return;
+		}
+		if ("modified".equals(req.getQuery().get("fields"))) {
+			write(req, resp, 200, post.modified);
+			return;
+		}
+		resp.setValue("ETag", post.etag);
+		if (post.etag.equals(req.getValue("If-None-Match"))) {
+			write(req, resp, 304, EMPTY);
+			return;
+		}
+		boolean gzip = acceptsGzip(req);
+		if (gzip) {
+			resp.setValue("Content-Encoding", "gzip");
+		}
+		write(req, resp, 200, post.getBody("site".equals(req.getQuery().get("meta")), req.getQuery().get("fields"), gzip));
+	}
+
+	private static byte[] listPosts(Site site, Request req) {
+		int number = req.getQuery().containsKey("number") ? req.getQuery().getInteger("number") : 20;
+		int page = req.getQuery().containsKey("page") ? req.getQuery().getInteger("page") : 1;
+		List<JSONObject> posts = new ArrayList<>();
+		int index = 0;
+		for (Post post : site.postBySlug.values()) {
+			if (index >= (page - 1) * number && index < page * number) {
+				posts.add(select(post.json, req.getQuery().get("fields")));
+			}
+			++index;
+		}
+		JSONObject json = new JSONObject();
+		json.put("found", site.postBySlug.size());
+		json.put("posts", new JSONArray(posts));
+		return toBytes(json);
+	}
+
+	/**
+	 * @return the host the request is meant for; a proxied request names it in the request line.
+	 */
+	private static String getHost(Request req) {
+		String host = req.getAddress().getDomain();
+		if (host == null) {
+			host = req.getValue("Host");
+			if (host == null) {
+				return null;
+			}
+		}
+		int colon = host.indexOf(':');
+		return colon < 0 ? host : host.substring(0, colon);
+	}
+
+	private static void write(Request req, Response resp, int code, byte[] body) throws IOException {
+		resp.setCode(code);
+		resp.setContentType("application/json");
+		resp.setContentLength(body.length);
+		try (OutputStream out = resp.getOutputStream()) {
+			if (!req.getMethod().equals("HEAD")) {
+				out.write(body);
+			}
+		}
+	}
+
+	/**
+	 * @param fields comma-separated top-level fields to keep, or {@code null} to keep all of them.
+	 */
+	private static JSONObject select(JSONObject json, String fields) {
+		return fields == null ? json : new JSONObject(json, fields.split(","));
+	}
+
+	private static boolean acceptsGzip(Request req) {
+		String acceptEncoding = req.getValue("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+	}
+
+	private static byte[] compress(byte[] body) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+		try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+			out.write(body);
+		}
+		return compressed.toByteArray();
+	}
+
+	private static byte[] toBytes(JSONObject json) {
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String decode(String fileName) {
+		try {
+			return URLDecoder.decode(fileName, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+
+	private static String hash(byte[] content) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported", e);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest(content)) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,320 @@
+package org.shoushitsu.wordpress.dump.loadtest;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the dump server with a fixed number of clients, each of which asks {@code /dump} for a book,
+ * waits on {@code /progress} until it is ready and downloads it from {@code /get}, over and over,
+ * going through the given first chapter URLs in turn. Then prints the throughput and latency percentiles
+ * of each step.
+ * <p>
+ * A book is only dumped the first time it is asked for; after that it is served from the server's cache
+ * until it expires. Give more URLs than the clients get through to measure dumping rather than serving.
+ * <p>
+ * Options are read from system properties: {@code wpdump.load.clients}, {@code wpdump.load.durationSeconds}
+ * and {@code wpdump.load.warmupSeconds}, whose samples are not counted.
+ */
+public class LoadGenerator {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+	private static final String[] STEPS = {"dump", "ready", "get"};
+	private static final int STEP_DUMP = 0;
+	private static final int STEP_READY = 1;
+	private static final int STEP_GET = 2;
+
+	/**
+	 * Latencies of one client, so that recording them takes no synchronization.
+	 */
+	private static final class Samples {
+
+		final long[][] nanosByStep = new long[STEPS.length][1024];
+
+		final int[] countByStep = new int[STEPS.length];
+
+		final int[] errorsByStep = new int[STEPS.length];
+
+		long bytes;
+
+		void add(int step, long nanos) {
+			long[] nanos0 = nanosByStep[step];
+			if (countByStep[step] == nanos0.length) {
+				nanosByStep[step] = nanos0 = Arrays.copyOf(nanos0, nanos0.length * 2);
+			}
+			nanos0[countByStep[step]++] = nanos;
+		}
+
+	}
+
+	private final CloseableHttpClient client;
+
+	private final URI server;
+
+	private final List<String> urls;
+
+	private final AtomicInteger nextUrl = new AtomicInteger();
+
+	private final long measureFromNanos;
+
+	private final long stopAtNanos;
+
+	private LoadGenerator(CloseableHttpClient client, URI server, List<String> urls, long measureFromNanos, long stopAtNanos) {
+		this.client = client;
+		this.server = server;
+		this.urls = urls;
+		this.measureFromNanos = measureFromNanos;
+		this.stopAtNanos = stopAtNanos;
+	}
+
+	public static void main(String[] args) {
+		byte exitCode = main0(args);
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+
+	private static byte main0(String[] args) {
+		if (args.length != 2) {
+			System.err.println("Arguments: <server URL> <file with first chapter URLs, one per line>");
+			return 0;
+		}
+		URI server;
+		try {
+			server = new URI(args[0]);
+		} catch (URISyntaxException e) {
+			System.err.println("Invalid server URL: " + args[0]);
+			return 1;
+		}
+		List<String> urls = new ArrayList<>();
+		try {
+			for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					urls.add(line);
+				}
+			}
+		} catch (InvalidPathException | IOException e) {
+			log.error("Failed to read the URLs", e);
+			return 1;
+		}
+		if (urls.isEmpty()) {
+			System.err.println("No URLs to dump");
+			return 1;
+		}
+
+		int clients = Integer.getInteger("wpdump.load.clients", 16);
+		long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("wpdump.load.warmupSeconds", 10));
+		long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("wpdump.load.durationSeconds", 60));
+		log.info("Running {} clients for {} s after a {} s warmup", clients, durationNanos / 1e9, warmupNanos / 1e9);
+
+		long startNanos = System.nanoTime();
+		final List<Samples> allSamples = new ArrayList<>();
+		try (CloseableHttpClient client = HttpClients.custom()
+				.setMaxConnTotal(clients)
+				.setMaxConnPerRoute(clients)
+				.build()) {
+			final LoadGenerator generator = new LoadGenerator(
+					client,
+					server,
+					urls,
+					startNanos + warmupNanos,
+					startNanos + warmupNanos + durationNanos
+			);
+			List<Thread> threads = new ArrayList<>(clients);
+			for (int i = 0; i < clients; ++i) {
+				final Samples samples = new Samples();
+				allSamples.add(samples);
+				Thread thread = new Thread("load-client-" + i) {
+					@Override
+					public void run() {
+						generator.runClient(samples);
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (IOException e) {
+			log.error("Error while closing the HTTP client", e);
+		} catch (InterruptedException e) {
+			log.error("Interrupted while waiting for the clients", e);
+			return 1;
+		}
+
+		report(allSamples, durationNanos);
+		return 0;
+	}
+
+	private void runClient(Samples samples) {
+		while (true) {
+			long startNanos = System.nanoTime();
+			if (startNanos >= stopAtNanos) {
+				return;
+			}
+			boolean measured = startNanos >= measureFromNanos;
+			String url = urls.get((nextUrl.getAndIncrement() & Integer.MAX_VALUE) % urls.size());
+
+			int step = STEP_DUMP;
+			try {
+				JSONObject task = getTask("/dump", url, null);
+				long dumpedNanos = System.nanoTime();
+				if (measured) {
+					samples.add(STEP_DUMP, dumpedNanos - startNanos);
+				}
+
+				step = STEP_READY;
+				while (!isFinished(task)) {
+					// only /progress reports the progress to wait on, so the first call returns at once
+					task = getTask("/progress", url, task.has("progress") ? task.getInt("progress") : null);
+				}
+				if (!task.getString("status").equals("ready")) {
+					throw new IOException("Dump failed: " + task);
+				}
+				long readyNanos = System.nanoTime();
+				if (measured) {
+					samples.add(STEP_READY, readyNanos - startNanos);
+				}
+
+				step = STEP_GET;
+				long bytes = download(url);
+				if (measured) {
+					samples.add(STEP_GET, System.nanoTime() - readyNanos);
+					samples.bytes += bytes;
+				}
+			} catch (IOException | JSONException e) {
+				log.debug("Error at the {} step for {}", STEPS[step], url, e);
+				if (measured) {
+					++samples.errorsByStep[step];
+				}
+			}
+		}
+	}
+
+	private static boolean isFinished(JSONObject task) {
+		String status = task.getString("status");
+		return status.equals("ready") || status.equals("failed");
+	}
+
+	/**
+	 * @param since for {@code /progress}, the progress the task had last time.
+	 */
+	private JSONObject getTask(String path, String url, Integer since) throws IOException {
+		URIBuilder uri = new URIBuilder(server).setPath(path).addParameter("url", url);
+		if (since != null) {
+			uri.addParameter("since", since.toString());
+		}
+		try (CloseableHttpResponse response = client.execute(new HttpGet(build(uri)))) {
+			String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode != 200) {
+				throw new IOException(path + " returned status code " + statusCode);
+			}
+			JSONObject json = new JSONObject(body);
+			if (!json.getString("status").equals("ok")) {
+				throw new IOException(path + " returned status " + json.getString("status"));
+			}
+			return json.getJSONObject("task");
+		}
+	}
+
+	private long download(String url) throws IOException {
+		URIBuilder uri = new URIBuilder(server).setPath("/get").addParameter("url", url);
+		try (CloseableHttpResponse response = client.execute(new HttpGet(build(uri)))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode != 200) {
+				EntityUtils.consume(response.getEntity());
+				throw new IOException("/get returned status code " + statusCode);
+			}
+			long bytes = 0;
+			byte[] buffer = new byte[1 << 16];
+			try (InputStream in = response.getEntity().getContent()) {
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					bytes += read;
+				}
+			}
+			return bytes;
+		}
+	}
+
+	private static URI build(URIBuilder uri) throws IOException {
+		try {
+			return uri.build();
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid request URL", e);
+		}
+	}
+
+	private static void report(List<Samples> allSamples, long durationNanos) {
+		double seconds = durationNanos / 1e9;
+		System.out.printf("%-6s %10s %8s %10s %10s %10s %10s %10s%n", "step", "count", "errors", "per sec", "p50 ms", "p99 ms", "p999 ms", "max ms");
+		for (int step = 0; step < STEPS.length; ++step) {
+			int count = 0;
+			int errors = 0;
+			for (Samples samples : allSamples) {
+				count += samples.countByStep[step];
+				errors += samples.errorsByStep[step];
+			}
+			long[] nanos = new long[count];
+			int offset = 0;
+			for (Samples samples : allSamples) {
+				System.arraycopy(samples.nanosByStep[step], 0, nanos, offset, samples.countByStep[step]);
+				offset += samples.countByStep[step];
+			}
+			Arrays.sort(nanos);
+			System.out.printf(
+					"%-6s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					STEPS[step],
+					count,
+					errors,
+					count / seconds,
+					percentileMillis(nanos, 0.5),
+					percentileMillis(nanos, 0.99),
+					percentileMillis(nanos, 0.999),
+					percentileMillis(nanos, 1)
+			);
+		}
+		long bytes = 0;
+		for (Samples samples : allSamples) {
+			bytes += samples.bytes;
+		}
+		System.out.printf("Downloaded %.1f MB/s%n", bytes / seconds / (1 << 20));
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted samples.
+	 */
+	private static double percentileMillis(long[] sortedNanos, double fraction) {
+		if (sortedNanos.length == 0) {
+			return Double.NaN;
+		}
+		int rank = (int) Math.ceil(fraction * sortedNanos.length);
+		return sortedNanos[Math.max(rank, 1) - 1] / 1e6;
+	}
+
+}
@@ -0,0 +1,281 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of the dumper's fetching code, for use with
+ * {@link PostChainDumper#dumpAsync}. Requests go through an asynchronous HTTP client,
+ * whose I/O threads only hand the results over to the work executor;
+ * parsing and callback invocation happen there, and retries and rate limiting wait on the timer.
+ */
+public class AsyncFetchEngine {
+
+	private static final RequestConfig NO_REDIRECTS = RequestConfig.copy(RequestConfig.DEFAULT)
+			.setRedirectsEnabled(false)
+			.build();
+
+	private final CloseableHttpAsyncClient client;
+
+	private final Executor workExecutor;
+
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * @param client       a started client.
+	 * @param workExecutor runs parsing and callback invocation.
+	 * @param timer        delays retries and rate limited requests.
+	 */
+	public AsyncFetchEngine(CloseableHttpAsyncClient client, Executor workExecutor, ScheduledExecutorService timer) {
+		this.client = client;
+		this.workExecutor = workExecutor;
+		this.timer = timer;
+	}
+
+	Executor getWorkExecutor() {
+		return workExecutor;
+	}
+
+	void schedule(Runnable task, long delay, TimeUnit unit) {
+		timer.schedule(task, delay, unit);
+	}
+
+	/**
+	 * Fetches the post, following a redirect if the post was moved.
+	 * The result is reported on the work executor.
+	 */
+	void fetchPost(
+			WordpressUrlParser.SiteAndSlug siteAndSlug,
+			String url,
+			boolean withSiteMeta,
+			Logger log,
+			DumpMetrics metrics,
+			RateLimiter rateLimiter,
+			FutureCallback<byte[]> callback
+	) {
+		new Fetch(url, withSiteMeta, log, metrics, rateLimiter, callback).get(siteAndSlug);
+	}
+
+	private final class Fetch {
+
+		private String url;
+
+		private String site;
+
+		private final boolean withSiteMeta;
+
+		private final Logger log;
+
+		private final DumpMetrics metrics;
+
+		private final RateLimiter rateLimiter;
+
+		private final FutureCallback<byte[]> callback;
+
+		private final long startTime = System.currentTimeMillis();
+
+		Fetch(
+				String url,
+				boolean withSiteMeta,
+				Logger log,
+				DumpMetrics metrics,
+				RateLimiter rateLimiter,
+				FutureCallback<byte[]> callback
+		) {
+			this.url = url;
+			this.withSiteMeta = withSiteMeta;
+			this.log = log;
+			this.metrics = metrics;
+			this.rateLimiter = rateLimiter;
+			this.callback = callback;
+		}
+
+		void get(WordpressUrlParser.SiteAndSlug siteAndSlug) {
+			log.debug("Fetching content");
+			site = siteAndSlug.site;
+			HttpGet request = new HttpGet(WordpressApiUrlBuilder.getPostBySiteAndSlug(siteAndSlug.site, siteAndSlug.slug, withSiteMeta));
+			// unlike the blocking client, the asynchronous one doesn't negotiate compression by itself
+			request.setHeader("Accept-Encoding", "gzip,deflate");
+			new ResponseCallback(metrics.fetchTime) {
+				@Override
+				void response(HttpResponse response) throws IOException {
+					int statusCode = response.getStatusLine().getStatusCode();
+					if (statusCode == 200) {
+						succeed(response.getEntity());
+						return;
+					}
+					EntityUtils.consume(response.getEntity());
+					TransientFetchException.check(url, response);
+					log.debug("Status code {} is not 200! Attempting to follow redirect...", statusCode);
+					if (statusCode == 404) {
+						head();
+					} else {
+						fail(new PostNotFoundException(url));
+					}
+				}
+			}.send(request);
+		}
+
+		private void head() {
+			new ResponseCallback(metrics.redirectCheckTime) {
+				@Override
+				void response(HttpResponse response) throws IOException {
+					int statusCode = response.getStatusLine().getStatusCode();
+					log.debug("HEAD returned code: {}", statusCode);
+					if (statusCode == 301) {
+						url = response.getFirstHeader("Location").getValue();
+						WordpressUrlParser.SiteAndSlug siteAndSlug = WordpressUrlParser.parsePostUrl(url);
+						if (siteAndSlug != null) {
+							get(siteAndSlug);
+							return;
+						}
+					}
+					fail(new PostNotFoundException(url));
+				}
+			}.send(RequestBuilder.head().setUri(url).setConfig(NO_REDIRECTS).build());
+		}
+
+		/**
+		 * @return the entity, wrapped to be decompressed as it is read if it is compressed.
+		 */
+		private HttpEntity decompressed(HttpEntity entity) throws IOException {
+			Header encoding = entity.getContentEncoding();
+			if (encoding == null) {
+				return entity;
+			}
+			switch (encoding.getValue().trim().toLowerCase(Locale.ROOT)) {
+				case "gzip":
+				case "x-gzip":
+					return new GzipDecompressingEntity(entity);
+				case "deflate":
+					return new DeflateDecompressingEntity(entity);
+				case "identity":
+					return entity;
+				default:
+					throw new IOException("Unsupported content encoding: " + encoding.getValue());
+			}
+		}
+
+		/**
+		 * Reads the entity on the work executor: the client has it in memory already,
+		 * but decompressing and copying it is no work for an I/O thread.
+		 */
+		private void succeed(final HttpEntity entity) {
+			workExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] content;
+					try {
+						content = EntityUtils.toByteArray(decompressed(entity));
+					} catch (IOException e) {
+						callback.failed(e);
+						return;
+					}
+					log.info("Fetched {} bytes in {} ms", content.length, System.currentTimeMillis() - startTime);
+					metrics.fetchedBytes.add(content.length);
+					callback.completed(content);
+				}
+			});
+		}
+
+		private void fail(final Exception e) {
+			workExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					callback.failed(e);
+				}
+			});
+		}
+
+		/**
+		 * Sends a request once the rate limiter allows it, waiting on the timer rather than on a thread,
+		 * and records the time from sending it to the outcome.
+		 */
+		private abstract class ResponseCallback implements FutureCallback<HttpResponse> {
+
+			private final Metrics.Histogram requestTime;
+
+			private String host;
+
+			private long requestStartTime;
+
+			ResponseCallback(Metrics.Histogram requestTime) {
+				this.requestTime = requestTime;
+			}
+
+			abstract void response(HttpResponse response) throws IOException;
+
+			void send(final HttpUriRequest request) {
+				host = request.getURI().getHost();
+				long waitNanos = 0;
+				if (rateLimiter != null) {
+					waitNanos = rateLimiter.reserve(host, site);
+					metrics.rateLimitWaitTime.observeNanos(waitNanos);
+				}
+				if (waitNanos > 0) {
+					timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							sendNow(request);
+						}
+					}, waitNanos, TimeUnit.NANOSECONDS);
+				} else {
+					sendNow(request);
+				}
+			}
+
+			private void sendNow(HttpUriRequest request) {
+				requestStartTime = System.nanoTime();
+				client.execute(request, this);
+			}
+
+			@Override
+			public final void completed(HttpResponse response) {
+				requestTime.observeSince(requestStartTime);
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode == 429 || statusCode == 503) {
+					metrics.throttledResponses.increment();
+				}
+				if (rateLimiter != null) {
+					rateLimiter.responded(host, statusCode);
+				}
+				try {
+					response(response);
+				} catch (IOException | RuntimeException e) {
+					fail(e);
+				}
+			}
+
+			@Override
+			public final void failed(Exception e) {
+				requestTime.observeSince(requestStartTime);
+				fail(e);
+			}
+
+			@Override
+			public final void cancelled() {
+				fail(new IOException("Request cancelled"));
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,114 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Disk cache of raw posts, keyed by site and slug. Each post is stored next to
+ * a small properties file with its ETag and modification timestamp, which are
+ * used to revalidate the post before reusing it.
+ * <p>
+ * Entries are written through a temporary file and moved into place,
+ * so the cache can be shared by concurrent dumps.
+ */
+public class ChapterCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ChapterCache.class);
+
+	private static final String POST_SUFFIX = ".post";
+	private static final String META_SUFFIX = ".meta";
+
+	private static final String META_ETAG = "etag";
+	private static final String META_MODIFIED = "modified";
+
+	static final class Entry {
+
+		final byte[] post;
+
+		final String etag;
+
+		final String modified;
+
+		Entry(byte[] post, String etag, String modified) {
+			this.post = post;
+			this.etag = etag;
+			this.modified = modified;
+		}
+
+	}
+
+	private final Path root;
+
+	public ChapterCache(Path root) throws IOException {
+		this.root = Files.createDirectories(root);
+	}
+
+	/**
+	 * @return the cached post, or {@code null} if there is none or it can't be read.
+	 */
+	Entry get(String site, String slug) {
+		Path base = getBasePath(site, slug);
+		Properties meta = new Properties();
+		try (InputStream in = Files.newInputStream(sibling(base, META_SUFFIX))) {
+			meta.load(in);
+			return new Entry(
+					Files.readAllBytes(sibling(base, POST_SUFFIX)),
+					meta.getProperty(META_ETAG),
+					meta.getProperty(META_MODIFIED)
+			);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			log.warn("Error while reading cached post {}", base, e);
+			return null;
+		}
+	}
+
+	void put(String site, String slug, byte[] post, String etag, String modified) {
+		Path base = getBasePath(site, slug);
+		Properties meta = new Properties();
+		if (etag != null) {
+			meta.setProperty(META_ETAG, etag);
+		}
+		if (modified != null) {
+			meta.setProperty(META_MODIFIED, modified);
+		}
+		try {
+			Files.createDirectories(base.getParent());
+			Path postTmp = Files.createTempFile(base.getParent(), null, POST_SUFFIX);
+			Files.write(postTmp, post);
+			Path metaTmp = Files.createTempFile(base.getParent(), null, META_SUFFIX);
+			try (OutputStream out = Files.newOutputStream(metaTmp)) {
+				meta.store(out, null);
+			}
+			// the post goes first: a new post with stale metadata only costs a refetch later
+			Files.move(postTmp, sibling(base, POST_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(metaTmp, sibling(base, META_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("Error while caching post {}", base, e);
+		}
+	}
+
+	private Path getBasePath(String site, String slug) {
+		try {
+			return root.resolve(URLEncoder.encode(site, "UTF-8")).resolve(URLEncoder.encode(slug, "UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+
+	private static Path sibling(Path base, String suffix) {
+		return base.resolveSibling(base.getFileName() + suffix);
+	}
+
+}
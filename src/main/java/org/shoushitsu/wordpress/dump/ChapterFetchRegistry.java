@@ -0,0 +1,118 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets concurrent dumps share post fetches. A dump that needs a post another dump
+ * is already fetching waits for that fetch instead of making its own request,
+ * and successfully fetched posts are kept for a while for dumps that come later.
+ */
+public class ChapterFetchRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(ChapterFetchRegistry.class);
+
+	private static final int SWEEP_INTERVAL = 256;
+
+	interface Fetcher {
+
+		byte[] fetch() throws IOException;
+
+	}
+
+	private static final class Entry {
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		volatile byte[] content;
+
+		volatile IOException exception;
+
+		volatile long expirationTime = Long.MAX_VALUE;
+
+		boolean isExpired(long now) {
+			return done.getCount() == 0 && expirationTime < now;
+		}
+
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final long ttlMillis;
+
+	private final AtomicInteger fetchesSinceSweep = new AtomicInteger();
+
+	/**
+	 * @param ttl how long a fetched post may be handed out to other dumps.
+	 */
+	public ChapterFetchRegistry(long ttl, TimeUnit unit) {
+		this.ttlMillis = unit.toMillis(ttl);
+	}
+
+	/**
+	 * Returns the post with the given site and slug, either from a fetch made by another dump,
+	 * or by running the given fetcher in the current thread.
+	 * If the other dump's fetch fails, its exception is thrown to every dump that waited for it.
+	 */
+	byte[] fetch(String site, String slug, Fetcher fetcher) throws IOException, InterruptedException {
+		String key = site + '/' + slug;
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.isExpired(System.currentTimeMillis())) {
+					entries.remove(key, entry);
+					continue;
+				}
+				entry.done.await();
+				if (entry.content != null) {
+					log.debug("Reusing post {} fetched by another dump", key);
+					return entry.content;
+				}
+				throw entry.exception;
+			}
+
+			entry = new Entry();
+			if (entries.putIfAbsent(key, entry) != null) {
+				continue;
+			}
+			try {
+				entry.content = fetcher.fetch();
+				entry.expirationTime = System.currentTimeMillis() + ttlMillis;
+				return entry.content;
+			} catch (IOException e) {
+				entry.exception = e;
+				entries.remove(key, entry);
+				throw e;
+			} catch (RuntimeException | Error e) {
+				entry.exception = new IOException(e);
+				entries.remove(key, entry);
+				throw e;
+			} finally {
+				entry.done.countDown();
+				if (fetchesSinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+					fetchesSinceSweep.set(0);
+					sweep();
+				}
+			}
+		}
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+			if (it.next().getValue().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+
+}
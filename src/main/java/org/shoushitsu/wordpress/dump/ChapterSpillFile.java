@@ -0,0 +1,131 @@
+package org.shoushitsu.wordpress.dump;
+
+import nl.siegmann.epublib.domain.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A scratch file that keeps the finished chapters of a book built in memory off the heap.
+ * The chapters are appended to the file as they are finished, and the book only holds
+ * resources that read them back when the book is written.
+ * <p>
+ * The file is deleted when it is closed, which must only be done once the book is written.
+ * Files left behind by a crashed process may be deleted at any time.
+ */
+public class ChapterSpillFile implements Closeable {
+
+	private static final int ENCODE_BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+
+	/**
+	 * Replaces unpaired surrogates like {@link String#getBytes} does.
+	 */
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private final ByteBuffer encodeBuffer = ByteBuffer.allocateDirect(ENCODE_BUFFER_SIZE);
+
+	private long size;
+
+	/**
+	 * Creates a new scratch file in the directory.
+	 */
+	public ChapterSpillFile(Path directory) throws IOException {
+		Path path = Files.createTempFile(directory, "chapters-", ".spill");
+		channel = FileChannel.open(
+				path,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE
+		);
+	}
+
+	/**
+	 * Writes the chapter to the file.
+	 *
+	 * @return a resource that reads the chapter back from the file each time its data is asked for.
+	 */
+	public synchronized Resource add(String href, CharSequence xhtml) throws IOException {
+		long offset = size;
+		CharBuffer chars = CharBuffer.wrap(xhtml);
+		encoder.reset();
+		while (encoder.encode(chars, encodeBuffer, true).isOverflow()) {
+			writeEncoded();
+		}
+		while (encoder.flush(encodeBuffer).isOverflow()) {
+			writeEncoded();
+		}
+		writeEncoded();
+		return new SpilledChapter(href, offset, (int) (size - offset));
+	}
+
+	private void writeEncoded() throws IOException {
+		encodeBuffer.flip();
+		while (encodeBuffer.hasRemaining()) {
+			size += channel.write(encodeBuffer, size);
+		}
+		encodeBuffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private byte[] read(long offset, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			// positional reads don't move the channel's position, so chapters may be read concurrently
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException("The chapter spill file is shorter than expected");
+			}
+		}
+		return bytes;
+	}
+
+	private class SpilledChapter extends Resource {
+
+		private final long offset;
+
+		private final int length;
+
+		SpilledChapter(String href, long offset, int length) {
+			super(href);
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public byte[] getData() throws IOException {
+			return read(offset, length);
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new ByteArrayInputStream(getData());
+		}
+
+		@Override
+		public long getSize() {
+			return length;
+		}
+
+	}
+
+}
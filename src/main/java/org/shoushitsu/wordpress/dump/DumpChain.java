@@ -20,19 +20,43 @@ public class DumpChain {
 			System.err.println("Arguments: <first URL in chain> <target EPUB file>");
 			return;
 		}
-		EpubDumperCallback callback = new MyEpubDumperCallback();
-		try (CloseableHttpClient client = HttpClients.createDefault()) {
-			PostChainDumper.dump(client, args[0], callback);
+		DumpOptions options = DumpOptions.fromSystemProperties();
+		if (Boolean.getBoolean("wpdump.streamingEpub")) {
+			log.info("Writing book file while dumping");
+			try (
+					StreamingEpubWriter writer = new StreamingEpubWriter(new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1]))));
+					CloseableHttpClient client = HttpClients.createDefault()
+			) {
+				PostChainDumper.dump(client, args[0], new MyEpubDumperCallback(writer), options);
+			}
+			return;
 		}
-		log.info("Writing book file");
-		try (BufferedOutputStream bookOut = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1])))) {
-			new EpubWriter().write(callback.getBook(), bookOut);
+
+		try (ChapterSpillFile spillFile = options.getChapterSpillDirectory() == null
+				? null
+				: new ChapterSpillFile(options.getChapterSpillDirectory())) {
+			EpubDumperCallback callback = new MyEpubDumperCallback(spillFile);
+			try (CloseableHttpClient client = HttpClients.createDefault()) {
+				PostChainDumper.dump(client, args[0], callback, options);
+			}
+			log.info("Writing book file");
+			try (BufferedOutputStream bookOut = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1])))) {
+				if (options.getEpubWriter() != null) {
+					options.getEpubWriter().write(callback.getBook(), bookOut);
+				} else {
+					new EpubWriter().write(callback.getBook(), bookOut);
+				}
+			}
 		}
 	}
 
 	private static class MyEpubDumperCallback extends EpubDumperCallback {
-		MyEpubDumperCallback() {
-			super(DumpChain.log);
+		MyEpubDumperCallback(StreamingEpubWriter writer) {
+			super(DumpChain.log, writer);
+		}
+
+		MyEpubDumperCallback(ChapterSpillFile spillFile) {
+			super(DumpChain.log, spillFile);
 		}
 
 		@Override
@@ -0,0 +1,139 @@
+package org.shoushitsu.wordpress.dump;
+
+/**
+ * What the dumper measures about itself. Every dump sharing the {@link DumpOptions} records into the same instance.
+ */
+public class DumpMetrics {
+
+	private final Metrics registry;
+
+	public final Metrics.Histogram fetchTime;
+
+	public final Metrics.Histogram redirectCheckTime;
+
+	public final Metrics.Histogram revalidationTime;
+
+	public final Metrics.Histogram listingFetchTime;
+
+	public final Metrics.Histogram parseTime;
+
+	public final Metrics.Histogram emitTime;
+
+	public final Metrics.Histogram epubWriteTime;
+
+	public final Metrics.Histogram epubFinishTime;
+
+	public final Metrics.Histogram rateLimitWaitTime;
+
+	public final Metrics.Counter fetchedBytes;
+
+	public final Metrics.Counter fetchRetries;
+
+	public final Metrics.Counter fetchFailures;
+
+	public final Metrics.Counter shortCircuitedFetches;
+
+	public final Metrics.Counter circuitBreakerTrips;
+
+	public final Metrics.Counter throttledResponses;
+
+	public final Metrics.Counter chapters;
+
+	public final Metrics.Counter chapterCacheHits;
+
+	public final Metrics.Counter chapterCacheMisses;
+
+	public final Metrics.Counter postIndexHits;
+
+	public final Metrics.Counter postIndexMisses;
+
+	public DumpMetrics() {
+		this(new Metrics());
+	}
+
+	public DumpMetrics(Metrics registry) {
+		this.registry = registry;
+		fetchTime = registry.histogram(
+				"wpdump_fetch_seconds",
+				"Time of post requests to the API, by stage, bodies included.",
+				"stage", "get"
+		);
+		redirectCheckTime = registry.histogram(
+				"wpdump_fetch_seconds",
+				"Time of post requests to the API, by stage, bodies included.",
+				"stage", "redirect_head"
+		);
+		revalidationTime = registry.histogram(
+				"wpdump_fetch_seconds",
+				"Time of post requests to the API, by stage, bodies included.",
+				"stage", "revalidate"
+		);
+		listingFetchTime = registry.histogram(
+				"wpdump_fetch_seconds",
+				"Time of post requests to the API, by stage, bodies included.",
+				"stage", "listing"
+		);
+		parseTime = registry.histogram(
+				"wpdump_parse_seconds",
+				"Time to extract a chapter from a post; JSON parsing and line processing happen in one pass."
+		);
+		emitTime = registry.histogram(
+				"wpdump_emit_seconds",
+				"Time to hand a chapter to the callback, including parsing unless the pipeline did it ahead."
+		);
+		epubWriteTime = registry.histogram(
+				"wpdump_epub_write_seconds",
+				"Time to write an EPUB file: all of it for a book built in memory, the closing entries for a streamed one.",
+				"mode", "in_memory"
+		);
+		epubFinishTime = registry.histogram(
+				"wpdump_epub_write_seconds",
+				"Time to write an EPUB file: all of it for a book built in memory, the closing entries for a streamed one.",
+				"mode", "streaming"
+		);
+		rateLimitWaitTime = registry.histogram(
+				"wpdump_rate_limit_wait_seconds",
+				"Time requests were held back by the rate limiter."
+		);
+		fetchedBytes = registry.counter("wpdump_fetched_bytes_total", "Bytes of posts fetched from the API.");
+		fetchRetries = registry.counter("wpdump_fetch_retries_total", "Failed post fetches that were retried.");
+		fetchFailures = registry.counter("wpdump_fetch_failures_total", "Post fetches that failed for good.");
+		shortCircuitedFetches = registry.counter(
+				"wpdump_fetch_short_circuited_total",
+				"Post fetches failed without a request because their site is paused."
+		);
+		circuitBreakerTrips = registry.counter(
+				"wpdump_circuit_breaker_trips_total",
+				"Times a site was paused after failing too many fetches in a row."
+		);
+		throttledResponses = registry.counter(
+				"wpdump_throttled_responses_total",
+				"Responses with status 429 or 503, which make the rate limiter slow down."
+		);
+		chapters = registry.counter("wpdump_chapters_total", "Chapters handed to the callback.");
+		chapterCacheHits = registry.counter(
+				"wpdump_cache_hits_total",
+				"Posts found in a cache.",
+				"cache", "chapter"
+		);
+		chapterCacheMisses = registry.counter(
+				"wpdump_cache_misses_total",
+				"Posts looked up in a cache, but not found or stale.",
+				"cache", "chapter"
+		);
+		postIndexHits = registry.counter("wpdump_cache_hits_total", "Posts found in a cache.", "cache", "post_index");
+		postIndexMisses = registry.counter(
+				"wpdump_cache_misses_total",
+				"Posts looked up in a cache, but not found or stale.",
+				"cache", "post_index"
+		);
+	}
+
+	/**
+	 * @return the registry to add other metrics to, for exposition along with these.
+	 */
+	public Metrics getRegistry() {
+		return registry;
+	}
+
+}
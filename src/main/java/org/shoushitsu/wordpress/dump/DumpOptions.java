@@ -0,0 +1,286 @@
+package org.shoushitsu.wordpress.dump;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunables for {@link PostChainDumper}. The defaults reproduce the plain sequential,
+ * one request per chapter behaviour.
+ */
+public class DumpOptions {
+
+	private static final String NAV_PROPERTY = "wpdump.nav";
+
+	private int pipelineCapacity;
+
+	private boolean bulkIndex;
+
+	private ChapterCache chapterCache;
+
+	private ChapterFetchRegistry fetchRegistry;
+
+	private ThreadFactory threadFactory;
+
+	private AsyncFetchEngine asyncFetchEngine;
+
+	private DumpMetrics metrics = new DumpMetrics();
+
+	private RetryPolicy retryPolicy = new RetryPolicy(3, 1000, 30 * 1000);
+
+	private SiteCircuitBreaker circuitBreaker;
+
+	private RateLimiter rateLimiter;
+
+	private ParallelEpubWriter epubWriter;
+
+	private Path chapterSpillDirectory;
+
+	private NavigationLinkScanner defaultNavigationLinkScanner = NavigationLinkScanner.DEFAULT;
+
+	private final Map<String, NavigationLinkScanner> navigationLinkScannerBySite = new HashMap<>();
+
+	/**
+	 * Reads the options from {@code wpdump.*} system properties:
+	 * {@code wpdump.pipeline} (queue capacity, 0 to disable),
+	 * {@code wpdump.bulk} (true to enable the site post index),
+	 * {@code wpdump.chapterCache} (chapter cache directory),
+	 * {@code wpdump.fetchSharing} (seconds to share fetched posts between dumps, 0 to disable),
+	 * {@code wpdump.retry.*} (see {@link RetryPolicy#fromSystemProperties()}),
+	 * {@code wpdump.breaker.failures} (failed fetches in a row that pause a site, 0 to disable),
+	 * {@code wpdump.breaker.openSeconds} (how long to pause it),
+	 * {@code wpdump.rate.hostPerSecond} and {@code wpdump.rate.sitePerSecond} (request rate limits, 0 for none),
+	 * {@code wpdump.rate.burst} (requests that may be sent at once),
+	 * {@code wpdump.epubThreads} (threads that compress books built in memory in parallel, 0 to write them with epublib on the dumping thread),
+	 * {@code wpdump.chapterSpill} (directory to keep chapters of books built in memory in, instead of the heap) and
+	 * {@code wpdump.nav} or {@code wpdump.nav.<site>} (navigation link markers
+	 * as {@code Next,Onward;Previous,Last}: next chapter markers, a semicolon, other markers).
+	 *
+	 * @throws IOException if the chapter cache or spill directory can't be created.
+	 */
+	public static DumpOptions fromSystemProperties() throws IOException {
+		String chapterCacheDir = System.getProperty("wpdump.chapterCache");
+		String chapterSpillDir = System.getProperty("wpdump.chapterSpill");
+		long fetchSharingSeconds = Long.getLong("wpdump.fetchSharing", 0);
+		int breakerFailures = Integer.getInteger("wpdump.breaker.failures", 5);
+		double hostPerSecond = Double.parseDouble(System.getProperty("wpdump.rate.hostPerSecond", "0"));
+		double sitePerSecond = Double.parseDouble(System.getProperty("wpdump.rate.sitePerSecond", "0"));
+		int epubThreads = Integer.getInteger("wpdump.epubThreads", 0);
+		DumpOptions options = new DumpOptions()
+				.setPipelineCapacity(Integer.getInteger("wpdump.pipeline", 0))
+				.setBulkIndex(Boolean.getBoolean("wpdump.bulk"))
+				.setChapterCache(chapterCacheDir == null ? null : new ChapterCache(Paths.get(chapterCacheDir)))
+				.setFetchRegistry(fetchSharingSeconds > 0 ? new ChapterFetchRegistry(fetchSharingSeconds, TimeUnit.SECONDS) : null)
+				.setRetryPolicy(RetryPolicy.fromSystemProperties())
+				.setCircuitBreaker(breakerFailures > 0
+						? new SiteCircuitBreaker(breakerFailures, Long.getLong("wpdump.breaker.openSeconds", 30) * 1000)
+						: null)
+				.setRateLimiter(hostPerSecond > 0 || sitePerSecond > 0
+						? new RateLimiter(hostPerSecond, sitePerSecond, Integer.getInteger("wpdump.rate.burst", 5))
+						: null)
+				.setEpubWriter(epubThreads > 0 ? new ParallelEpubWriter(new ForkJoinPool(epubThreads)) : null)
+				.setChapterSpillDirectory(chapterSpillDir == null
+						? null
+						: Files.createDirectories(Paths.get(chapterSpillDir)));
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.equals(NAV_PROPERTY)) {
+				options.setNavigationLinkScanner(null, parseNavigationMarkers(System.getProperty(name)));
+			} else if (name.startsWith(NAV_PROPERTY + '.')) {
+				options.setNavigationLinkScanner(
+						name.substring(NAV_PROPERTY.length() + 1),
+						parseNavigationMarkers(System.getProperty(name))
+				);
+			}
+		}
+		return options;
+	}
+
+	private static NavigationLinkScanner parseNavigationMarkers(String value) {
+		int separator = value.indexOf(';');
+		return new NavigationLinkScanner(
+				splitMarkers(separator < 0 ? value : value.substring(0, separator)),
+				splitMarkers(separator < 0 ? "" : value.substring(separator + 1))
+		);
+	}
+
+	private static List<String> splitMarkers(String markers) {
+		markers = markers.trim();
+		return markers.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(markers.split("\\s*,\\s*"));
+	}
+
+	public int getPipelineCapacity() {
+		return pipelineCapacity;
+	}
+
+	/**
+	 * @param pipelineCapacity if positive, the chain is walked in pipelined mode
+	 *                         and each stage may get this many chapters ahead of the next one.
+	 */
+	public DumpOptions setPipelineCapacity(int pipelineCapacity) {
+		this.pipelineCapacity = pipelineCapacity;
+		return this;
+	}
+
+	public boolean isBulkIndex() {
+		return bulkIndex;
+	}
+
+	/**
+	 * @param bulkIndex whether to page through the site's post listing and take chapters
+	 *                  from there, falling back to per-slug requests on misses.
+	 */
+	public DumpOptions setBulkIndex(boolean bulkIndex) {
+		this.bulkIndex = bulkIndex;
+		return this;
+	}
+
+	public ChapterCache getChapterCache() {
+		return chapterCache;
+	}
+
+	/**
+	 * @param chapterCache where to keep fetched posts for revalidation on later dumps,
+	 *                     or {@code null} to always fetch them in full.
+	 */
+	public DumpOptions setChapterCache(ChapterCache chapterCache) {
+		this.chapterCache = chapterCache;
+		return this;
+	}
+
+	public ChapterFetchRegistry getFetchRegistry() {
+		return fetchRegistry;
+	}
+
+	/**
+	 * @param fetchRegistry the registry through which concurrent dumps using these options
+	 *                      share their post fetches, or {@code null} to not share them.
+	 */
+	public DumpOptions setFetchRegistry(ChapterFetchRegistry fetchRegistry) {
+		this.fetchRegistry = fetchRegistry;
+		return this;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * @param threadFactory creates the stage threads of the pipelined mode,
+	 *                      or {@code null} to create plain daemon threads.
+	 */
+	public DumpOptions setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	public AsyncFetchEngine getAsyncFetchEngine() {
+		return asyncFetchEngine;
+	}
+
+	/**
+	 * @param asyncFetchEngine if not {@code null}, dumps that support it will walk their chains
+	 *                         with {@link PostChainDumper#dumpAsync} through this engine.
+	 */
+	public DumpOptions setAsyncFetchEngine(AsyncFetchEngine asyncFetchEngine) {
+		this.asyncFetchEngine = asyncFetchEngine;
+		return this;
+	}
+
+	public DumpMetrics getMetrics() {
+		return metrics;
+	}
+
+	public DumpOptions setMetrics(DumpMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public DumpOptions setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	public SiteCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * @param circuitBreaker the breaker through which dumps using these options stop fetching from sites
+	 *                       that keep failing, or {@code null} to always fetch.
+	 */
+	public DumpOptions setCircuitBreaker(SiteCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+		return this;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @param rateLimiter the limiter through which dumps using these options space out their requests,
+	 *                    or {@code null} to send them as soon as they are ready.
+	 */
+	public DumpOptions setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		return this;
+	}
+
+	public ParallelEpubWriter getEpubWriter() {
+		return epubWriter;
+	}
+
+	/**
+	 * @param epubWriter writes the books that are built in memory,
+	 *                   or {@code null} to write them with epublib's own single-threaded writer.
+	 */
+	public DumpOptions setEpubWriter(ParallelEpubWriter epubWriter) {
+		this.epubWriter = epubWriter;
+		return this;
+	}
+
+	public Path getChapterSpillDirectory() {
+		return chapterSpillDirectory;
+	}
+
+	/**
+	 * @param chapterSpillDirectory where books built in memory keep their finished chapters
+	 *                              until they are written, or {@code null} to keep them on the heap.
+	 * @see ChapterSpillFile
+	 */
+	public DumpOptions setChapterSpillDirectory(Path chapterSpillDirectory) {
+		this.chapterSpillDirectory = chapterSpillDirectory;
+		return this;
+	}
+
+	public NavigationLinkScanner getNavigationLinkScanner(String site) {
+		NavigationLinkScanner scanner = navigationLinkScannerBySite.get(site);
+		return scanner == null ? defaultNavigationLinkScanner : scanner;
+	}
+
+	/**
+	 * @param site the site to use the scanner for, or {@code null} to use it for all sites without their own.
+	 */
+	public DumpOptions setNavigationLinkScanner(String site, NavigationLinkScanner scanner) {
+		if (site == null) {
+			defaultNavigationLinkScanner = scanner;
+		} else {
+			navigationLinkScannerBySite.put(site, scanner);
+		}
+		return this;
+	}
+
+}
@@ -7,25 +7,166 @@ import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public abstract class EpubDumperCallback implements PostChainDumperCallback {
 
 	protected final Logger log;
 
-	private final Book book = new Book();
+	private final Book book;
+
+	private final StreamingEpubWriter writer;
+
+	private final ChapterSpillFile spillFile;
 
 	private String chapterTitle;
 
 	private final StringBuilder chapter = new StringBuilder();
 
+	private MessageDigest contentDigest;
+
+	/**
+	 * Encodes content into the digest a piece at a time, without a copy of the whole of it.
+	 * Replaces unpaired surrogates like {@link String#getBytes} does, which the hash was first made with.
+	 */
+	private CharsetEncoder digestEncoder;
+
+	private ByteBuffer digestBuffer;
+
+	private String contentHash;
+
 	protected EpubDumperCallback(Logger log) {
 		this.log = log;
+		this.book = new Book();
+		this.writer = null;
+		this.spillFile = null;
 	}
 
+	/**
+	 * Creates a callback that writes each chapter to the given writer as soon as it's complete,
+	 * instead of collecting them in a {@link Book}. A {@code null} writer means the latter.
+	 */
+	protected EpubDumperCallback(Logger log, StreamingEpubWriter writer) {
+		this.log = log;
+		this.book = writer == null ? new Book() : null;
+		this.writer = writer;
+		this.spillFile = null;
+	}
+
+	/**
+	 * Creates a callback that collects the chapters in a {@link Book}, keeping their content
+	 * in the given file rather than on the heap. A {@code null} file means keeping it on the heap.
+	 */
+	protected EpubDumperCallback(Logger log, ChapterSpillFile spillFile) {
+		this.log = log;
+		this.book = new Book();
+		this.writer = null;
+		this.spillFile = spillFile;
+	}
+
+	/**
+	 * @return the book, or {@code null} if the chapters were written to a {@link StreamingEpubWriter}.
+	 */
 	public final Book getBook() {
 		return book;
 	}
 
+	/**
+	 * The hash covers what the book says, not how it's packaged: EPUB files of the same content
+	 * differ in timestamps, so they can't be compared byte by byte.
+	 *
+	 * @return a hex SHA-256 hash of the book's title, authors and chapters, or {@code null}
+	 * if {@link #hashesContent()} says not to compute it; must only be called once the dump is over.
+	 */
+	public final String getContentHash() {
+		if (contentHash == null && contentDigest != null) {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : contentDigest.digest()) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			contentHash = sb.toString();
+		}
+		return contentHash;
+	}
+
+	/**
+	 * @return whether to compute {@link #getContentHash()}, which costs a pass over every chapter.
+	 */
+	protected boolean hashesContent() {
+		return false;
+	}
+
+	private void digest(char kind, CharSequence content) {
+		if (!hashesContent()) {
+			return;
+		}
+		if (contentDigest == null) {
+			contentDigest = newContentDigest();
+			digestEncoder = StandardCharsets.UTF_8.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			digestBuffer = ByteBuffer.allocate(8192);
+		}
+		contentDigest.update((byte) kind);
+		int length = utf8Length(content);
+		// the length keeps the boundaries between the parts unambiguous
+		contentDigest.update(new byte[] {
+				(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length
+		});
+		CharBuffer chars = CharBuffer.wrap(content);
+		digestEncoder.reset();
+		while (digestEncoder.encode(chars, digestBuffer, true).isOverflow()) {
+			updateDigest();
+		}
+		while (digestEncoder.flush(digestBuffer).isOverflow()) {
+			updateDigest();
+		}
+		updateDigest();
+	}
+
+	private void updateDigest() {
+		contentDigest.update(digestBuffer.array(), 0, digestBuffer.position());
+		digestBuffer.clear();
+	}
+
+	/**
+	 * @return the length of the content in UTF-8, with each unpaired surrogate replaced by one byte.
+	 */
+	private static int utf8Length(CharSequence content) {
+		int length = 0;
+		for (int i = 0; i < content.length(); ++i) {
+			char c = content.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < content.length()
+					&& Character.isLowSurrogate(content.charAt(i + 1))) {
+				length += 4;
+				++i;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 must be supported by every JVM", e);
+		}
+	}
+
 	private void writeln(String line) {
 		chapter.append(line);
 		chapter.append('\n');
@@ -51,7 +192,12 @@ public abstract class EpubDumperCallback implements PostChainDumperCallback {
 
 	@Override
 	public final void bookTitle(String title) {
-		book.getMetadata().addTitle(title);
+		digest('T', title);
+		if (writer == null) {
+			book.getMetadata().addTitle(title);
+		} else {
+			writer.addTitle(title);
+		}
         onBookTitle(title);
     }
 
@@ -71,7 +217,12 @@ public abstract class EpubDumperCallback implements PostChainDumperCallback {
 
 	@Override
 	public final void author(String author) {
-		book.getMetadata().addAuthor(new Author(author));
+		digest('A', author);
+		if (writer == null) {
+			book.getMetadata().addAuthor(new Author(author));
+		} else {
+			writer.addAuthor(author);
+		}
 	}
 
 	@Override
@@ -84,16 +235,31 @@ public abstract class EpubDumperCallback implements PostChainDumperCallback {
 		writeln("</body>");
 		writeln("</html>");
 
+		String href = String.format("%06d.html", index);
+		digest('H', href);
+		digest('C', chapter);
+		if (writer != null) {
+			try {
+				writer.addChapter(chapterTitle, href, chapter);
+			} catch (IOException e) {
+				log.error("Error while writing chapter {} to the book", index, e);
+				return impossible();
+			} finally {
+				chapter.setLength(0);
+			}
+			onEndChapter(index);
+			return true;
+		}
+
 		try {
 			book.addSection(
 					chapterTitle,
-					new Resource(
-							new StringReader(chapter.toString()),
-							String.format("%06d.html", index)
-					)
+					spillFile == null
+							? new Resource(new StringReader(chapter.toString()), href)
+							: spillFile.add(href, chapter)
 			);
 		} catch (IOException e) {
-			log.error("Impossible error while adding chapter {} to the book", e);
+			log.error("Error while adding chapter {} to the book", index, e);
 			return impossible();
 		} finally {
 			chapter.setLength(0);
@@ -102,6 +268,13 @@ public abstract class EpubDumperCallback implements PostChainDumperCallback {
 		return true;
 	}
 
+	/**
+	 * @return the title of the chapter being written, or of the last one written, if in between chapters.
+	 */
+	protected final String getChapterTitle() {
+		return chapterTitle;
+	}
+
 	protected void onEndChapter(int index) {
 		// inheritors may override
 	}
@@ -0,0 +1,191 @@
+package org.shoushitsu.wordpress.dump;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A registry of counters, gauges and latency histograms that can be written out
+ * in the Prometheus text format. Recording is a couple of atomic increments and takes no locks;
+ * only registration and exposition are synchronized.
+ */
+public class Metrics {
+
+	public static final class Counter {
+
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter() {
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long amount) {
+			value.addAndGet(amount);
+		}
+
+	}
+
+	public interface Gauge {
+
+		long get();
+
+	}
+
+	/**
+	 * Durations, exposed in seconds.
+	 */
+	public static final class Histogram {
+
+		private static final double[] BOUNDS = {
+				0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+		};
+
+		private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+		static {
+			for (int i = 0; i < BOUNDS.length; ++i) {
+				BOUND_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+			}
+		}
+
+		/**
+		 * Per bucket, not cumulative; the last one is for durations above every bound.
+		 */
+		private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+		private final AtomicLong sumNanos = new AtomicLong();
+
+		private Histogram() {
+		}
+
+		public void observeNanos(long nanos) {
+			int bucket = 0;
+			while (bucket < BOUND_NANOS.length && nanos > BOUND_NANOS[bucket]) {
+				++bucket;
+			}
+			counts.incrementAndGet(bucket);
+			sumNanos.addAndGet(nanos);
+		}
+
+		/**
+		 * @param startNanos a {@link System#nanoTime()} reading taken when the measured thing started.
+		 */
+		public void observeSince(long startNanos) {
+			observeNanos(System.nanoTime() - startNanos);
+		}
+
+	}
+
+	private static final class Family {
+
+		final String type;
+
+		final String help;
+
+		final Map<String, Object> metricByLabels = new LinkedHashMap<>();
+
+		Family(String type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+
+	}
+
+	private final Map<String, Family> familyByName = new LinkedHashMap<>();
+
+	/**
+	 * @param labels label names and values, alternating.
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return register(name, "counter", help, labels, new Counter());
+	}
+
+	public void gauge(String name, String help, Gauge gauge, String... labels) {
+		register(name, "gauge", help, labels, gauge);
+	}
+
+	public Histogram histogram(String name, String help, String... labels) {
+		return register(name, "histogram", help, labels, new Histogram());
+	}
+
+	private synchronized <M> M register(String name, String type, String help, String[] labels, M metric) {
+		Family family = familyByName.get(name);
+		if (family == null) {
+			family = new Family(type, help);
+			familyByName.put(name, family);
+		} else if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+		}
+		String labelString = formatLabels(labels);
+		if (family.metricByLabels.containsKey(labelString)) {
+			throw new IllegalArgumentException("Metric " + name + labelString + " is already registered");
+		}
+		family.metricByLabels.put(labelString, metric);
+		return metric;
+	}
+
+	public synchronized void writeTo(Writer out) throws IOException {
+		for (Map.Entry<String, Family> familyEntry : familyByName.entrySet()) {
+			String name = familyEntry.getKey();
+			Family family = familyEntry.getValue();
+			out.write("# HELP " + name + ' ' + family.help + '\n');
+			out.write("# TYPE " + name + ' ' + family.type + '\n');
+			for (Map.Entry<String, Object> entry : family.metricByLabels.entrySet()) {
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof Counter) {
+					out.write(name + labels + ' ' + ((Counter) metric).value.get() + '\n');
+				} else if (metric instanceof Gauge) {
+					out.write(name + labels + ' ' + ((Gauge) metric).get() + '\n');
+				} else {
+					writeHistogram(out, name, labels, (Histogram) metric);
+				}
+			}
+		}
+	}
+
+	private static void writeHistogram(Writer out, String name, String labels, Histogram histogram) throws IOException {
+		// bucket labels go after the metric's own
+		String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ',';
+		long cumulative = 0;
+		for (int i = 0; i <= Histogram.BOUNDS.length; ++i) {
+			cumulative += histogram.counts.get(i);
+			String bound = i < Histogram.BOUNDS.length ? Double.toString(Histogram.BOUNDS[i]) : "+Inf";
+			out.write(name + "_bucket" + labelPrefix + "le=\"" + bound + "\"} " + cumulative + '\n');
+		}
+		out.write(name + "_sum" + labels + ' ' + histogram.sumNanos.get() / 1e9 + '\n');
+		out.write(name + "_count" + labels + ' ' + cumulative + '\n');
+	}
+
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must come in name and value pairs");
+		}
+		if (labels.length == 0) {
+			return "";
+		}
+		List<String> pairs = new ArrayList<>(labels.length / 2);
+		for (int i = 0; i < labels.length; i += 2) {
+			String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+			pairs.add(labels[i] + "=\"" + value + '"');
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for (String pair : pairs) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append(pair);
+		}
+		return sb.append('}').toString();
+	}
+
+}
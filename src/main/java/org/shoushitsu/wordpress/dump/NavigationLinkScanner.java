@@ -0,0 +1,167 @@
+package org.shoushitsu.wordpress.dump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds chapter navigation links, like {@code <a href="...">Next Chapter</a>}, in a line of content.
+ * <p>
+ * A link is an {@code <a>} tag with an optional {@code title} and a mandatory {@code href} attribute,
+ * whose text is one of the known markers followed by the word "Chapter".
+ * The line is scanned in place with a hand-written matcher, so nothing is allocated
+ * except the URLs of the links that lead to the next chapter.
+ */
+public final class NavigationLinkScanner {
+
+	public static final NavigationLinkScanner DEFAULT = new NavigationLinkScanner(
+			Collections.singletonList("Next"),
+			Arrays.asList("Last", "Previous")
+	);
+
+	interface Listener {
+
+		void nextLink(String url);
+
+	}
+
+	private static final String TAG_START = "<a";
+	private static final String TITLE_START = "title=\"";
+	private static final String HREF_START = "href=\"";
+	private static final String LINK_WORD = "Chapter";
+	private static final String TAG_END = "</a>";
+
+	private final String[] markers;
+
+	private final boolean[] nextMarkers;
+
+	/**
+	 * @param nextMarkers  link texts (before "Chapter") of links to the next chapter.
+	 * @param otherMarkers link texts of other navigation links, which are only removed from the content.
+	 */
+	public NavigationLinkScanner(Collection<String> nextMarkers, Collection<String> otherMarkers) {
+		List<String> markers = new ArrayList<>(nextMarkers);
+		markers.addAll(otherMarkers);
+		this.markers = markers.toArray(new String[markers.size()]);
+		this.nextMarkers = new boolean[this.markers.length];
+		Arrays.fill(this.nextMarkers, 0, nextMarkers.size(), true);
+	}
+
+	/**
+	 * @return whether the line contains any navigation links.
+	 */
+	boolean scan(CharSequence line, Listener listener) {
+		boolean found = false;
+		int length = line.length();
+		for (int start = indexOf(line, TAG_START, 0); start >= 0; start = indexOf(line, TAG_START, start)) {
+			int end = matchLink(line, start + TAG_START.length(), length, listener);
+			if (end < 0) {
+				++start;
+			} else {
+				found = true;
+				start = end;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the index after the link's closing tag, or -1 if there is no link at this position.
+	 */
+	private int matchLink(CharSequence line, int i, int length, Listener listener) {
+		int afterSpace = skipSpace(line, i, length);
+		if (afterSpace == i) {
+			return -1;
+		}
+		i = afterSpace;
+		if (startsWith(line, i, TITLE_START)) {
+			int titleEnd = indexOf(line, '"', i + TITLE_START.length());
+			if (titleEnd > i + TITLE_START.length()) {
+				afterSpace = skipSpace(line, titleEnd + 1, length);
+				if (afterSpace > titleEnd + 1 && startsWith(line, afterSpace, HREF_START)) {
+					i = afterSpace;
+				}
+			}
+		}
+		if (!startsWith(line, i, HREF_START)) {
+			return -1;
+		}
+		int urlStart = i + HREF_START.length();
+		int urlEnd = indexOf(line, '"', urlStart);
+		if (urlEnd <= urlStart) {
+			return -1;
+		}
+		i = skipSpace(line, urlEnd + 1, length);
+		if (i == length || line.charAt(i) != '>') {
+			return -1;
+		}
+		i = skipSpace(line, i + 1, length);
+		for (int m = 0; m < markers.length; ++m) {
+			if (!startsWith(line, i, markers[m])) {
+				continue;
+			}
+			int j = i + markers[m].length();
+			afterSpace = skipSpace(line, j, length);
+			if (afterSpace == j || !startsWith(line, afterSpace, LINK_WORD)) {
+				continue;
+			}
+			j = skipSpace(line, afterSpace + LINK_WORD.length(), length);
+			if (!startsWith(line, j, TAG_END)) {
+				continue;
+			}
+			if (nextMarkers[m]) {
+				listener.nextLink(line.subSequence(urlStart, urlEnd).toString());
+			}
+			return j + TAG_END.length();
+		}
+		return -1;
+	}
+
+	private static int skipSpace(CharSequence line, int i, int length) {
+		while (i < length && isSpace(line.charAt(i))) {
+			++i;
+		}
+		return i;
+	}
+
+	/**
+	 * Same set of characters as {@code \s} in {@link java.util.regex.Pattern}.
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static boolean startsWith(CharSequence line, int i, String prefix) {
+		if (i + prefix.length() > line.length()) {
+			return false;
+		}
+		for (int k = 0; k < prefix.length(); ++k) {
+			if (line.charAt(i + k) != prefix.charAt(k)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(CharSequence line, char c, int from) {
+		for (int i = from, length = line.length(); i < length; ++i) {
+			if (line.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(CharSequence line, String s, int from) {
+		char first = s.charAt(0);
+		for (int i = indexOf(line, first, from); i >= 0; i = indexOf(line, first, i + 1)) {
+			if (startsWith(line, i, s)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
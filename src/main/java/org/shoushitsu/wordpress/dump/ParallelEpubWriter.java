@@ -0,0 +1,300 @@
+package org.shoushitsu.wordpress.dump;
+
+import nl.siegmann.epublib.domain.Book;
+import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.epub.EpubProcessorSupport;
+import nl.siegmann.epublib.epub.EpubWriter;
+import nl.siegmann.epublib.epub.NCXDocument;
+import nl.siegmann.epublib.epub.PackageDocumentWriter;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a {@link Book} the way {@link EpubWriter} does, with the same entries in the same order,
+ * but deflates them in parallel on a fork-join pool instead of one after another on the calling thread.
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} can only compress what is written to it, so the zip file is put
+ * together here: each entry is deflated on its own into a buffer, and the buffers are written out in order
+ * as they become ready, the stored {@code mimetype} entry first, as EPUB requires. Only a few entries
+ * per pool thread are compressed ahead of the one being written, so a book never has all of its
+ * compressed entries on the heap at once.
+ * The target stream is flushed, but not closed.
+ */
+public class ParallelEpubWriter {
+
+	private static final String MIMETYPE = "application/epub+zip";
+
+	private static final String CONTENT_DIR = "OEBPS/";
+
+	private static final byte[] CONTAINER = ("<?xml version=\"1.0\"?>\n" +
+			"<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n" +
+			"\t<rootfiles>\n" +
+			"\t\t<rootfile full-path=\"" + CONTENT_DIR + "content.opf\" media-type=\"application/oebps-package+xml\"/>\n" +
+			"\t</rootfiles>\n" +
+			"</container>").getBytes(StandardCharsets.UTF_8);
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param pool where the entries are deflated; may be shared by many writers,
+	 *             whose books then take turns at the pool's threads.
+	 */
+	public ParallelEpubWriter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Like {@link EpubWriter#write}, replaces the book's table of contents with a freshly generated one.
+	 */
+	public void write(Book book, OutputStream out) throws IOException {
+		List<Callable<ZipAssembler.Entry>> jobs = new ArrayList<>();
+		jobs.add(deflate("META-INF/container.xml", CONTAINER));
+
+		Resource toc = NCXDocument.createNCXResource(book);
+		Resource oldToc = book.getSpine().getTocResource();
+		if (oldToc != null) {
+			book.getResources().remove(oldToc.getHref());
+		}
+		book.getSpine().setTocResource(toc);
+		book.getResources().add(toc);
+
+		for (Resource resource : book.getResources().getAll()) {
+			jobs.add(deflate(CONTENT_DIR + resource.getHref(), resource));
+		}
+
+		ByteArrayOutputStream opf = new ByteArrayOutputStream();
+		XmlSerializer serializer = EpubProcessorSupport.createXmlSerializer(opf);
+		PackageDocumentWriter.write(new EpubWriter(), serializer, book);
+		serializer.flush();
+		jobs.add(deflate(CONTENT_DIR + "content.opf", opf.toByteArray()));
+
+		// a few entries ahead keep the threads busy; more would only hold compressed data until its turn
+		int window = 2 * pool.getParallelism();
+		Deque<ForkJoinTask<ZipAssembler.Entry>> inFlight = new ArrayDeque<>(window);
+		Iterator<Callable<ZipAssembler.Entry>> pending = jobs.iterator();
+		try {
+			ZipAssembler zip = new ZipAssembler(out);
+			zip.add(ZipAssembler.stored("mimetype", MIMETYPE.getBytes(StandardCharsets.US_ASCII)));
+			while (pending.hasNext() || !inFlight.isEmpty()) {
+				while (inFlight.size() < window && pending.hasNext()) {
+					inFlight.add(pool.submit(pending.next()));
+				}
+				zip.add(inFlight.poll().get());
+			}
+			zip.finish();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing the book", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress the book", e.getCause());
+		} finally {
+			for (ForkJoinTask<ZipAssembler.Entry> entry : inFlight) {
+				entry.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Reads the resource's data in the job, so that chapters kept in a {@link ChapterSpillFile}
+	 * are only on the heap while they are being compressed.
+	 */
+	private static Callable<ZipAssembler.Entry> deflate(final String name, final Resource resource) {
+		return new Callable<ZipAssembler.Entry>() {
+			@Override
+			public ZipAssembler.Entry call() throws IOException {
+				return ZipAssembler.deflated(name, resource.getData());
+			}
+		};
+	}
+
+	private static Callable<ZipAssembler.Entry> deflate(final String name, final byte[] data) {
+		return new Callable<ZipAssembler.Entry>() {
+			@Override
+			public ZipAssembler.Entry call() {
+				return ZipAssembler.deflated(name, data);
+			}
+		};
+	}
+
+	/**
+	 * Writes a zip file out of entries that are already compressed. No Zip64: EPUB books are far smaller.
+	 */
+	static final class ZipAssembler {
+
+		static final class Entry {
+
+			final byte[] name;
+
+			final int method;
+
+			final long crc;
+
+			final long size;
+
+			final byte[] compressed;
+
+			final int compressedLength;
+
+			Entry(String name, int method, long crc, long size, byte[] compressed, int compressedLength) {
+				this.name = name.getBytes(StandardCharsets.UTF_8);
+				this.method = method;
+				this.crc = crc;
+				this.size = size;
+				this.compressed = compressed;
+				this.compressedLength = compressedLength;
+			}
+
+		}
+
+		private static final int METHOD_STORED = 0;
+		private static final int METHOD_DEFLATED = 8;
+
+		private static final int VERSION = 20;
+
+		/**
+		 * Names are UTF-8, as with {@link java.util.zip.ZipOutputStream}.
+		 */
+		private static final int FLAGS = 0x800;
+
+		private static final long MAX_VALUE = 0xffffffffL;
+		private static final int MAX_ENTRIES = 0xffff;
+
+		static Entry stored(String name, byte[] data) {
+			return new Entry(name, METHOD_STORED, crc(data), data.length, data, data.length);
+		}
+
+		static Entry deflated(String name, byte[] data) {
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				byte[] buffer = new byte[Math.max(data.length / 2, 64)];
+				int length = 0;
+				while (!deflater.finished()) {
+					if (length == buffer.length) {
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					}
+					length += deflater.deflate(buffer, length, buffer.length - length);
+				}
+				return new Entry(name, METHOD_DEFLATED, crc(data), data.length, buffer, length);
+			} finally {
+				deflater.end();
+			}
+		}
+
+		private static long crc(byte[] data) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			return crc.getValue();
+		}
+
+		private final OutputStream out;
+
+		private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+		private final int dosTime;
+
+		private final int dosDate;
+
+		private long offset;
+
+		private int entryCount;
+
+		ZipAssembler(OutputStream out) {
+			this.out = out;
+			Calendar now = Calendar.getInstance();
+			dosTime = now.get(Calendar.HOUR_OF_DAY) << 11 | now.get(Calendar.MINUTE) << 5 | now.get(Calendar.SECOND) >> 1;
+			dosDate = (now.get(Calendar.YEAR) - 1980) << 9 | (now.get(Calendar.MONTH) + 1) << 5 | now.get(Calendar.DAY_OF_MONTH);
+		}
+
+		void add(Entry entry) throws IOException {
+			if (entryCount == MAX_ENTRIES || entry.size > MAX_VALUE || offset + entry.compressedLength > MAX_VALUE) {
+				throw new IOException("The book is too large for a zip file without Zip64");
+			}
+			ByteArrayOutputStream header = new ByteArrayOutputStream(30 + entry.name.length);
+			writeInt(header, 0x04034b50);
+			writeShort(header, VERSION);
+			writeEntryFields(header, entry);
+			writeShort(header, 0); // extra field length
+			header.write(entry.name);
+			header.writeTo(out);
+			out.write(entry.compressed, 0, entry.compressedLength);
+
+			writeInt(centralDirectory, 0x02014b50);
+			writeShort(centralDirectory, VERSION); // made by
+			writeShort(centralDirectory, VERSION); // needed to extract
+			writeEntryFields(centralDirectory, entry);
+			writeShort(centralDirectory, 0); // extra field length
+			writeShort(centralDirectory, 0); // comment length
+			writeShort(centralDirectory, 0); // disk number
+			writeShort(centralDirectory, 0); // internal attributes
+			writeInt(centralDirectory, 0); // external attributes
+			writeInt(centralDirectory, (int) offset);
+			centralDirectory.write(entry.name);
+
+			offset += header.size() + entry.compressedLength;
+			++entryCount;
+		}
+
+		void finish() throws IOException {
+			if (offset + centralDirectory.size() > MAX_VALUE) {
+				throw new IOException("The book is too large for a zip file without Zip64");
+			}
+			centralDirectory.writeTo(out);
+			ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+			writeInt(end, 0x06054b50);
+			writeShort(end, 0); // this disk
+			writeShort(end, 0); // disk with the central directory
+			writeShort(end, entryCount); // on this disk
+			writeShort(end, entryCount);
+			writeInt(end, centralDirectory.size());
+			writeInt(end, (int) offset);
+			writeShort(end, 0); // comment length
+			end.writeTo(out);
+			out.flush();
+		}
+
+		/**
+		 * The fields from the flags to the name length, which both headers share.
+		 */
+		private void writeEntryFields(ByteArrayOutputStream header, Entry entry) {
+			writeShort(header, FLAGS);
+			writeShort(header, entry.method);
+			writeShort(header, dosTime);
+			writeShort(header, dosDate);
+			writeInt(header, (int) entry.crc);
+			writeInt(header, entry.compressedLength);
+			writeInt(header, (int) entry.size);
+			writeShort(header, entry.name.length);
+		}
+
+		private static void writeShort(ByteArrayOutputStream out, int value) {
+			out.write(value);
+			out.write(value >>> 8);
+		}
+
+		private static void writeInt(ByteArrayOutputStream out, int value) {
+			writeShort(out, value);
+			writeShort(out, value >>> 16);
+		}
+
+	}
+
+}
@@ -1,54 +1,102 @@
 package org.shoushitsu.wordpress.dump;
 
+import org.apache.http.Header;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.json.JSONObject;
+import org.json.JSONException;
 import org.slf4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class PostChainDumper {
 
 	private static final int INDEX_PLACEHOLDER = 0;
 
-	private static final String NAV_LINK_SUBSTRING = "<a";
-	private static final Set<String> NAV_LINK_NEXT_MARKERS = new HashSet<>();
-	private static final Pattern NAV_LINK_PATTERN;
-	private static final int NAV_LINK_URL_GROUP;
-	private static final int NAV_LINK_MARKER_GROUP;
+	private static final String END_OF_CHAIN_URL = new String("");
 
-	static {
-		NAV_LINK_NEXT_MARKERS.add("Next");
-		StringBuilder sb = new StringBuilder();
-		for (String marker : NAV_LINK_NEXT_MARKERS) {
-			sb.append(marker).append('|');
+	private static final Chapter END_OF_CHAIN = new Chapter(INDEX_PLACEHOLDER, END_OF_CHAIN_URL);
+
+	public static void dump(CloseableHttpClient client, String firstUrl, PostChainDumperCallback callback) throws InterruptedException {
+		dump(client, firstUrl, callback, new DumpOptions());
+	}
+
+	/**
+	 * Dumps the chain with fetching, parsing and callback invocation running concurrently:
+	 * the next chapter is fetched as soon as its URL is found, while the previous ones
+	 * are still being parsed or fed to the callback.
+	 * The callback is only invoked from the calling thread, in chain order.
+	 *
+	 * @param queueCapacity how many chapters each stage may get ahead of the next one.
+	 */
+	public static void dumpPipelined(
+			CloseableHttpClient client,
+			String firstUrl,
+			PostChainDumperCallback callback,
+			int queueCapacity
+	) throws InterruptedException {
+		dump(client, firstUrl, callback, new DumpOptions().setPipelineCapacity(queueCapacity));
+	}
+
+	public static void dump(
+			CloseableHttpClient client,
+			String firstUrl,
+			PostChainDumperCallback callback,
+			DumpOptions options
+	) throws InterruptedException {
+		PostChainDumper dumper = new PostChainDumper(client, callback, options);
+		dumper.enqueue(firstUrl);
+		if (options.getPipelineCapacity() > 0) {
+			dumper.runPipelined(options.getPipelineCapacity());
+		} else {
+			dumper.run();
 		}
-		sb.append("Last|Previous");
-		NAV_LINK_PATTERN = Pattern.compile("<a(?:\\s++title=\"[^\"]++\")?\\s++href=\"([^\"]++)\"\\s*+>\\s*+(" + sb.toString() + ")\\s++Chapter\\s*+</a>");
-		NAV_LINK_URL_GROUP = 1;
-		NAV_LINK_MARKER_GROUP = 2;
 	}
 
-	public static void dump(CloseableHttpClient client, String firstUrl, PostChainDumperCallback callback) throws InterruptedException {
-		PostChainDumper dumper = new PostChainDumper(client, callback);
+	/**
+	 * Dumps the chain without blocking the calling thread. Fetches go through the engine's
+	 * asynchronous client, and each fetched chapter is parsed on the engine's work executor
+	 * right away, so that the next fetch can start. Chapters are then fed to the callback,
+	 * in chain order and one at a time; if the callback falls behind by the pipeline capacity
+	 * (or by one chapter, if the pipelined mode is off), fetching pauses until it catches up.
+	 * <p>
+	 * The post index, chapter cache and fetch registry only work with blocking fetches
+	 * and are not used in this mode.
+	 *
+	 * @param whenDone completed when the walk is over, including when the callback stopped it;
+	 *                 failed if a post couldn't be parsed.
+	 */
+	public static void dumpAsync(
+			AsyncFetchEngine engine,
+			String firstUrl,
+			PostChainDumperCallback callback,
+			DumpOptions options,
+			FutureCallback<Void> whenDone
+	) {
+		PostChainDumper dumper = new PostChainDumper(null, callback, options);
 		dumper.enqueue(firstUrl);
-		dumper.run();
+		dumper.new AsyncWalk(engine, Math.max(options.getPipelineCapacity(), 1), whenDone).pump();
 	}
 
 
@@ -58,26 +106,59 @@ public class PostChainDumper {
 
 	private final Logger log;
 
+	private final DumpOptions options;
+
+	private final SitePostIndex postIndex;
+
+	private final ChapterCache chapterCache;
+
+	private final ChapterFetchRegistry fetchRegistry;
+
+	private final DumpMetrics metrics;
+
+	private final RetryPolicy retryPolicy;
+
+	private final SiteCircuitBreaker circuitBreaker;
+
+	private final RateLimiter rateLimiter;
+
 	private final BlockingQueue<String> urlQueue = new LinkedBlockingQueue<>();
 
 	private final ConcurrentMap<String, Integer> indexByUrl = new ConcurrentHashMap<>();
 
 	private final AtomicInteger indexSource = new AtomicInteger();
 
+	private final AtomicInteger unparsedCount = new AtomicInteger();
+
 	private volatile boolean savedBookInfo;
 
 	private final Set<String> knownAuthors = new HashSet<>();
 
-	private PostChainDumper(CloseableHttpClient client, PostChainDumperCallback callback) {
+	private PostChainDumper(CloseableHttpClient client, PostChainDumperCallback callback, DumpOptions options) {
 		this.client = client;
 		this.callback = callback;
 		this.log = callback.getLogger();
+		this.options = options;
+		boolean blocking = client != null;
+		this.postIndex = blocking && options.isBulkIndex() ? new SitePostIndex(new SitePostIndex.PageFetcher() {
+			@Override
+			public byte[] fetchPage(String site, int page) throws IOException, InterruptedException {
+				return fetchListingPage(site, page);
+			}
+		}, log) : null;
+		this.chapterCache = blocking ? options.getChapterCache() : null;
+		this.fetchRegistry = blocking ? options.getFetchRegistry() : null;
+		this.metrics = options.getMetrics();
+		this.retryPolicy = options.getRetryPolicy();
+		this.circuitBreaker = options.getCircuitBreaker();
+		this.rateLimiter = options.getRateLimiter();
 	}
 
 	private void enqueue(String url) {
 		if (indexByUrl.putIfAbsent(url, INDEX_PLACEHOLDER) == null) {
 			log.trace("Enqueueing url: {}", url);
 			indexByUrl.put(url, indexSource.incrementAndGet());
+			unparsedCount.incrementAndGet();
 			urlQueue.offer(url);
 		}
 	}
@@ -85,7 +166,8 @@ public class PostChainDumper {
 	private void run() throws InterruptedException {
 		String url;
 		while ((url = urlQueue.poll()) != null) {
-			if (!processNode(url, indexByUrl.get(url))) {
+			Chapter chapter = fetch(url, indexByUrl.get(url));
+			if (!emit(chapter)) {
 				break;
 			}
 			if (Thread.interrupted()) {
@@ -94,85 +176,592 @@ public class PostChainDumper {
 		}
 	}
 
-	private boolean processNode(String url, int index) throws InterruptedException {
+	private void runPipelined(int queueCapacity) throws InterruptedException {
+		final BlockingQueue<Chapter> fetchedQueue = new ArrayBlockingQueue<>(queueCapacity);
+		final BlockingQueue<Chapter> parsedQueue = new ArrayBlockingQueue<>(queueCapacity);
+		Thread fetcher = newStageThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String url;
+					while ((url = urlQueue.take()) != END_OF_CHAIN_URL) {
+						Chapter chapter = fetch(url, indexByUrl.get(url));
+						fetchedQueue.put(chapter);
+						if (chapter.fetchException != null) {
+							break;
+						}
+					}
+				} catch (InterruptedException e) {
+					log.debug("Fetcher interrupted");
+				}
+			}
+		}, "fetcher");
+		Thread parser = newStageThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Chapter chapter = fetchedQueue.take();
+						if (chapter.isFetched()) {
+							long parseStartTime = System.nanoTime();
+							try {
+								parse(chapter, chapter);
+								chapter.parsed = true;
+							} catch (RuntimeException e) {
+								chapter.parseException = e;
+							}
+							metrics.parseTime.observeSince(parseStartTime);
+						}
+						if (chapter.fetchException != null || chapter.parseException != null) {
+							parsedQueue.put(chapter);
+							break;
+						}
+						boolean last = unparsedCount.decrementAndGet() == 0;
+						parsedQueue.put(chapter);
+						if (last) {
+							urlQueue.put(END_OF_CHAIN_URL);
+							parsedQueue.put(END_OF_CHAIN);
+							break;
+						}
+					}
+				} catch (InterruptedException e) {
+					log.debug("Parser interrupted");
+				}
+			}
+		}, "parser");
+		fetcher.start();
+		parser.start();
+		try {
+			Chapter chapter;
+			while ((chapter = parsedQueue.take()) != END_OF_CHAIN) {
+				if (chapter.parseException != null) {
+					throw chapter.parseException;
+				}
+				if (!emit(chapter)) {
+					break;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException("Detected an interrupt between nodes");
+				}
+			}
+		} finally {
+			fetcher.interrupt();
+			parser.interrupt();
+		}
+	}
+
+	/**
+	 * The state of a non-blocking walk: at most one fetch is in flight,
+	 * and at most one work executor task is feeding the callback.
+	 */
+	private final class AsyncWalk {
+
+		private final AsyncFetchEngine engine;
+
+		private final int capacity;
+
+		private final FutureCallback<Void> whenDone;
+
+		private final Deque<Chapter> parsedQueue = new ArrayDeque<>();
+
+		private boolean fetching;
+
+		private boolean delivering;
+
+		private boolean finished;
+
+		private boolean reported;
+
+		private Exception failure;
+
+		private final Runnable deliverer = new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					Chapter chapter;
+					synchronized (AsyncWalk.this) {
+						chapter = finished ? null : parsedQueue.pollFirst();
+						if (chapter == null) {
+							delivering = false;
+						}
+						// the walk may be over, or else a queue slot is free now
+						advance();
+					}
+					if (chapter == null) {
+						reportFinished();
+						return;
+					}
+					if (chapter.parseException != null) {
+						finish(chapter.parseException);
+						reportFinished();
+						return;
+					}
+					boolean proceed;
+					try {
+						proceed = emit(chapter);
+					} catch (RuntimeException e) {
+						finish(e);
+						reportFinished();
+						return;
+					}
+					if (!proceed) {
+						finish(null);
+						reportFinished();
+						return;
+					}
+				}
+			}
+		};
+
+		AsyncWalk(AsyncFetchEngine engine, int capacity, FutureCallback<Void> whenDone) {
+			this.engine = engine;
+			this.capacity = capacity;
+			this.whenDone = whenDone;
+		}
+
+		void pump() {
+			advance();
+			reportFinished();
+		}
+
+		private synchronized void advance() {
+			if (finished) {
+				return;
+			}
+			if (!fetching && parsedQueue.size() < capacity) {
+				String url = urlQueue.poll();
+				if (url != null) {
+					fetching = true;
+					start(url, indexByUrl.get(url));
+				}
+			}
+			if (!delivering && !parsedQueue.isEmpty()) {
+				delivering = true;
+				engine.getWorkExecutor().execute(deliverer);
+			}
+			if (!fetching && !delivering && parsedQueue.isEmpty() && urlQueue.isEmpty()) {
+				finish(null);
+			}
+		}
+
+		private void start(String url, int index) {
+			log.info("Processing url with index {}: {}", index, url);
+			Chapter chapter = new Chapter(index, url);
+			chapter.startTime = System.currentTimeMillis();
+
+			chapter.siteAndSlug = WordpressUrlParser.parsePostUrl(url);
+			if (chapter.siteAndSlug == null) {
+				log.error("Can't parse URL: {}", url);
+				chapter.badUrl = true;
+				fetched(chapter);
+				return;
+			}
+			log.debug("Parsed url as: {}", chapter.siteAndSlug);
+			fetch(chapter, 1, null);
+		}
+
+		private void fetch(final Chapter chapter, final int attempt, final IOException previousException) {
+			IOException openException = checkCircuit(chapter.siteAndSlug.site);
+			if (openException != null) {
+				attemptFailed(chapter, attempt, previousException, openException);
+				return;
+			}
+			engine.fetchPost(chapter.siteAndSlug, chapter.url, !savedBookInfo, log, metrics, rateLimiter, new FutureCallback<byte[]>() {
+				@Override
+				public void completed(byte[] content) {
+					fetchSucceeded(chapter.siteAndSlug.site);
+					chapter.content = content;
+					long parseStartTime = System.nanoTime();
+					try {
+						parse(chapter, chapter);
+						chapter.parsed = true;
+					} catch (RuntimeException e) {
+						chapter.parseException = e;
+					}
+					metrics.parseTime.observeSince(parseStartTime);
+					fetched(chapter);
+				}
+
+				@Override
+				public void failed(Exception e) {
+					if (e instanceof PostNotFoundException) {
+						log.error(e.getMessage());
+						fetchSucceeded(chapter.siteAndSlug.site);
+						chapter.fetchException = (PostNotFoundException) e;
+						fetched(chapter);
+						return;
+					}
+					attemptFailed(chapter, attempt, previousException, e instanceof IOException ? (IOException) e : new IOException(e));
+				}
+
+				@Override
+				public void cancelled() {
+					failed(new IOException("Fetch cancelled"));
+				}
+			});
+		}
+
+		/**
+		 * Schedules the next attempt on the engine's timer, or gives up.
+		 */
+		private void attemptFailed(final Chapter chapter, final int attempt, IOException previousException, IOException e) {
+			final IOException fetchException;
+			if (previousException == null) {
+				fetchException = e;
+			} else {
+				fetchException = previousException;
+				fetchException.addSuppressed(e);
+			}
+			long delay = fetchAttemptFailed(chapter.siteAndSlug.site, attempt, e, true);
+			if (delay < 0) {
+				chapter.fetchException = fetchException;
+				fetched(chapter);
+				return;
+			}
+			engine.schedule(new Runnable() {
+				@Override
+				public void run() {
+					fetch(chapter, attempt + 1, fetchException);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void fetched(Chapter chapter) {
+			synchronized (this) {
+				fetching = false;
+				parsedQueue.addLast(chapter);
+				advance();
+			}
+			reportFinished();
+		}
+
+		private synchronized void finish(Exception failure) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			this.failure = failure;
+			parsedQueue.clear();
+		}
+
+		/**
+		 * Tells {@code whenDone} that the walk is over, if it is, without holding the lock:
+		 * finishing the book takes a while, and a fetch still in flight must not wait for it.
+		 */
+		private void reportFinished() {
+			// a fetch may complete right away, under the lock taken to start it; the outer call reports then
+			if (Thread.holdsLock(this)) {
+				return;
+			}
+			synchronized (this) {
+				if (!finished || reported) {
+					return;
+				}
+				reported = true;
+			}
+			if (failure == null) {
+				whenDone.completed(null);
+			} else {
+				whenDone.failed(failure);
+			}
+		}
+
+	}
+
+	private Thread newStageThread(Runnable stage, String stageName) {
+		String name = Thread.currentThread().getName() + '-' + stageName;
+		ThreadFactory threadFactory = options.getThreadFactory();
+		if (threadFactory == null) {
+			Thread thread = new Thread(stage, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+		Thread thread = threadFactory.newThread(stage);
+		thread.setName(name);
+		return thread;
+	}
+
+	private Chapter fetch(String url, int index) throws InterruptedException {
 		log.info("Processing url with index {}: {}", index, url);
-		callback.startChapter(index);
+		Chapter chapter = new Chapter(index, url);
+		chapter.startTime = System.currentTimeMillis();
 
 		WordpressUrlParser.SiteAndSlug siteAndSlug = WordpressUrlParser.parsePostUrl(url);
 		if (siteAndSlug == null) {
 			log.error("Can't parse URL: {}", url);
-			return callback.badUrl(index, url);
+			chapter.badUrl = true;
+			return chapter;
 		}
 		log.debug("Parsed url as: {}", siteAndSlug);
-		long startTime = System.currentTimeMillis();
-		byte[] content;
+		chapter.siteAndSlug = siteAndSlug;
+		// the listing doesn't carry site metadata, so the first chapter is always fetched by itself
+		if (postIndex != null && savedBookInfo) {
+			chapter.content = postIndex.get(siteAndSlug.site, siteAndSlug.slug);
+			if (chapter.content != null) {
+				log.debug("Found post in site index");
+				metrics.postIndexHits.increment();
+				return chapter;
+			}
+			log.debug("Post is not in site index, fetching it by slug");
+			metrics.postIndexMisses.increment();
+		}
 		IOException fetchException = null;
 		for (int attempt = 1; ; ++attempt) {
-			try {
-				content = fetchContent(siteAndSlug, url);
-				break;
-			} catch (PostNotFoundException e) {
-				log.error(e.getMessage());
-				callback.fetchException(e);
-				return false;
-			} catch (IOException e) {
-				log.error("Error while fetching content", e);
-				if (fetchException == null) {
-					fetchException = e;
-				} else {
-					fetchException.addSuppressed(e);
-				}
-			}
-			if (attempt == 3) {
-				log.error("Couldn't fetch in {} attempts, aborting", attempt);
-				callback.fetchException(fetchException);
-				return false;
-			} else {
-				log.info("Attempt #{} at fetching content failed, will wait {} seconds before trying again...", attempt);
+			IOException attemptException = checkCircuit(siteAndSlug.site);
+			boolean shared = fetchRegistry != null && savedBookInfo;
+			if (attemptException == null) {
 				try {
-					Thread.sleep(attempt * 1000);
-				} catch (InterruptedException e) {
-					throw new InterruptedException("Interrupted while waiting between fetch attempts");
+					chapter.content = shared ? fetchShared(siteAndSlug, url) : fetchContent(siteAndSlug, url);
+					fetchSucceeded(siteAndSlug.site);
+					return chapter;
+				} catch (PostNotFoundException e) {
+					log.error(e.getMessage());
+					fetchSucceeded(siteAndSlug.site);
+					chapter.fetchException = e;
+					return chapter;
+				} catch (IOException e) {
+					checkInterrupted(e);
+					attemptException = e;
 				}
 			}
+			if (fetchException == null) {
+				fetchException = attemptException;
+			} else {
+				fetchException.addSuppressed(attemptException);
+			}
+			// a shared fetch has told the circuit breaker already, once for all the dumps that waited for it
+			long delay = fetchAttemptFailed(siteAndSlug.site, attempt, attemptException, !shared);
+			if (delay < 0) {
+				chapter.fetchException = fetchException;
+				return chapter;
+			}
+			// the walk is blocking as a whole, so this thread has nothing else to do in the meantime
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new InterruptedException("Interrupted while waiting between fetch attempts");
+			}
+		}
+	}
+
+	/**
+	 * Fetches a page of the site's post listing, retrying like a single post would be.
+	 */
+	private byte[] fetchListingPage(String site, int page) throws IOException, InterruptedException {
+		IOException fetchException = null;
+		for (int attempt = 1; ; ++attempt) {
+			IOException attemptException = checkCircuit(site);
+			if (attemptException == null) {
+				HttpGet request = new HttpGet(WordpressApiUrlBuilder.getPostsBySite(site, SitePostIndex.PAGE_SIZE, page));
+				int statusCode = 0;
+				long requestStartTime = System.nanoTime();
+				try (CloseableHttpResponse response = execute(request, site)) {
+					statusCode = response.getStatusLine().getStatusCode();
+					if (statusCode == 200) {
+						byte[] content = readContent(response);
+						fetchSucceeded(site);
+						metrics.fetchedBytes.add(content.length);
+						return content;
+					}
+					TransientFetchException.check(request.getURI().toString(), response);
+				} catch (IOException e) {
+					checkInterrupted(e);
+					attemptException = e;
+				} finally {
+					metrics.listingFetchTime.observeSince(requestStartTime);
+				}
+				if (attemptException == null) {
+					// the site answered, so there's no point in asking again
+					fetchSucceeded(site);
+					throw new IOException("Post listing returned status code " + statusCode);
+				}
+			}
+			if (fetchException == null) {
+				fetchException = attemptException;
+			} else {
+				fetchException.addSuppressed(attemptException);
+			}
+			long delay = fetchAttemptFailed(site, attempt, attemptException, true);
+			if (delay < 0) {
+				throw fetchException;
+			}
+			Thread.sleep(delay);
+		}
+	}
+
+	/**
+	 * Tells an interrupted wait in {@link #execute} from a failed request, so that it isn't retried
+	 * or held against the site.
+	 */
+	private static void checkInterrupted(IOException e) throws InterruptedException {
+		if (e instanceof InterruptedIOException && Thread.interrupted()) {
+			InterruptedException interrupted = new InterruptedException(e.getMessage());
+			interrupted.initCause(e);
+			throw interrupted;
+		}
+	}
+
+	/**
+	 * @return the reason to fail a fetch from the site without a request, or {@code null} if it may go ahead.
+	 */
+	private IOException checkCircuit(String site) {
+		if (circuitBreaker == null) {
+			return null;
+		}
+		long remainingMillis = circuitBreaker.getRemainingOpenMillis(site);
+		if (remainingMillis == 0) {
+			return null;
+		}
+		metrics.shortCircuitedFetches.increment();
+		return new SiteCircuitBreaker.OpenException(site, remainingMillis);
+	}
+
+	/**
+	 * Records that the site answered, even if only to say that there is no such post.
+	 */
+	private void fetchSucceeded(String site) {
+		if (circuitBreaker != null) {
+			circuitBreaker.succeeded(site);
+		}
+	}
+
+	/**
+	 * Records a failed fetch attempt.
+	 *
+	 * @param attempt the attempt that failed, starting from 1.
+	 * @param tellBreaker whether to tell the circuit breaker about the failure.
+	 * @return how long to wait before the next attempt, in milliseconds, or -1 to give up.
+	 */
+	private long fetchAttemptFailed(String site, int attempt, IOException e, boolean tellBreaker) {
+		if (e instanceof SiteCircuitBreaker.OpenException) {
+			log.error(e.getMessage());
+			metrics.fetchFailures.increment();
+			return -1;
+		}
+		log.error("Error while fetching content", e);
+		if (tellBreaker) {
+			siteFailed(site, e);
+		}
+		// no point in waiting for an attempt that would fail right away
+		boolean open = circuitBreaker != null && circuitBreaker.getRemainingOpenMillis(site) > 0;
+		long delay = open ? -1 : retryPolicy.getDelayMillis(attempt, e);
+		if (delay < 0) {
+			log.error("Couldn't fetch in {} attempts, aborting", attempt);
+			metrics.fetchFailures.increment();
+		} else {
+			metrics.fetchRetries.increment();
+			log.info("Attempt #{} at fetching content failed, will wait {} ms before trying again...", attempt, delay);
+		}
+		return delay;
+	}
+
+	private void siteFailed(String site, IOException e) {
+		if (circuitBreaker != null) {
+			long retryAfterMillis = e instanceof TransientFetchException ? ((TransientFetchException) e).getRetryAfterMillis() : 0;
+			if (circuitBreaker.failed(site, retryAfterMillis)) {
+				metrics.circuitBreakerTrips.increment();
+			}
+		}
+	}
+
+	private boolean emit(Chapter chapter) {
+		long startTime = System.nanoTime();
+		try {
+			return emit0(chapter);
+		} finally {
+			metrics.emitTime.observeSince(startTime);
 		}
-		callback.saveUnparsedPost(index, content);
-		cleanUpContent(content);
+	}
+
+	private boolean emit0(Chapter chapter) {
+		callback.startChapter(chapter.index);
+		if (chapter.badUrl) {
+			return callback.badUrl(chapter.index, chapter.url);
+		}
+		if (chapter.fetchException != null) {
+			callback.fetchException(chapter.fetchException);
+			return false;
+		}
+		callback.saveUnparsedPost(chapter.index, chapter.content);
+		if (chapter.parsed) {
+			chapter.replay(callbackSink);
+		} else {
+			long parseStartTime = System.nanoTime();
+			parse(chapter, callbackSink);
+			metrics.parseTime.observeSince(parseStartTime);
+		}
+		metrics.chapters.increment();
 
-		log.info("Processed chapter #{} in {} ms total", index, System.currentTimeMillis() - startTime);
-		callback.endChapter(index);
-		return true;
+		log.info("Processed chapter #{} in {} ms total", chapter.index, System.currentTimeMillis() - chapter.startTime);
+		return callback.endChapter(chapter.index);
+	}
+
+	/**
+	 * Fetches the post through the registry shared with other dumps. Posts fetched for
+	 * the first chapter carry site metadata, so other dumps may use them, but not vice versa.
+	 * <p>
+	 * A failed fetch is held against the site by the dump that made it, before the dumps
+	 * that waited for it get its exception, so that it is only counted once.
+	 */
+	private byte[] fetchShared(final WordpressUrlParser.SiteAndSlug siteAndSlug, final String url) throws IOException, InterruptedException {
+		return fetchRegistry.fetch(siteAndSlug.site, siteAndSlug.slug, new ChapterFetchRegistry.Fetcher() {
+			@Override
+			public byte[] fetch() throws IOException {
+				try {
+					return fetchContent(siteAndSlug, url);
+				} catch (PostNotFoundException e) {
+					throw e;
+				} catch (IOException e) {
+					// an interrupted wait for the rate limiter is no fault of the site
+					if (!(e instanceof InterruptedIOException && Thread.currentThread().isInterrupted())) {
+						siteFailed(siteAndSlug.site, e);
+					}
+					throw e;
+				}
+			}
+		});
 	}
 
 	private byte[] fetchContent(WordpressUrlParser.SiteAndSlug siteAndSlug, String url) throws IOException {
+		// the cached post may lack site metadata, so the first chapter is always fetched in full
+		if (chapterCache != null && savedBookInfo) {
+			ChapterCache.Entry cached = chapterCache.get(siteAndSlug.site, siteAndSlug.slug);
+			if (cached != null) {
+				long revalidationStartTime = System.nanoTime();
+				byte[] content = revalidate(siteAndSlug, cached);
+				metrics.revalidationTime.observeSince(revalidationStartTime);
+				if (content != null) {
+					metrics.chapterCacheHits.increment();
+					return content;
+				}
+			}
+			metrics.chapterCacheMisses.increment();
+		}
+
 		log.debug("Fetching content");
 		long startTime = System.currentTimeMillis();
+		WordpressUrlParser.SiteAndSlug requestedSiteAndSlug = siteAndSlug;
 		byte[] content;
+		String etag;
 		while (true) {
-			HttpGet request = new HttpGet(WordpressApiUrlBuilder.getPostBySiteAndSlug(siteAndSlug.site, siteAndSlug.slug));
-			if (!savedBookInfo) {
-				try {
-					request.setURI(new URIBuilder(request.getURI()).addParameter("meta", "site").build());
-				} catch (URISyntaxException e) {
-					log.error("Impossible!", e);
-					callback.impossible();
-					savedBookInfo = true;
-				}
-			}
+			HttpGet request = new HttpGet(WordpressApiUrlBuilder.getPostBySiteAndSlug(siteAndSlug.site, siteAndSlug.slug, !savedBookInfo));
 			int statusCode;
-			try (CloseableHttpResponse response = client.execute(request)) {
+			long requestStartTime = System.nanoTime();
+			try (CloseableHttpResponse response = execute(request, siteAndSlug.site)) {
 				statusCode = response.getStatusLine().getStatusCode();
 				if (statusCode == 200) {
-					long contentLength = response.getEntity().getContentLength();
-					ByteArrayOutputStream baos = new ByteArrayOutputStream(contentLength < 0 ? (1 << 15) : (int) contentLength);
-					response.getEntity().writeTo(baos);
-					content = baos.toByteArray();
+					content = readContent(response);
+					etag = getETag(response);
 					break;
 				}
+				TransientFetchException.check(url, response);
+			} finally {
+				metrics.fetchTime.observeSince(requestStartTime);
 			}
 			log.debug("Status code {} is not 200! Attempting to follow redirect...", statusCode);
 			if (statusCode == 404) {
-				try (CloseableHttpResponse head = client.execute(
+				requestStartTime = System.nanoTime();
+				try (CloseableHttpResponse head = execute(
 						RequestBuilder.head()
 								.setUri(url)
 								.setConfig(
@@ -180,7 +769,8 @@ public class PostChainDumper {
 												.setRedirectsEnabled(false)
 												.build()
 								)
-								.build()
+								.build(),
+						siteAndSlug.site
 				)) {
 					statusCode = head.getStatusLine().getStatusCode();
 					log.debug("HEAD returned code: {}", statusCode);
@@ -189,62 +779,273 @@ public class PostChainDumper {
 						siteAndSlug = WordpressUrlParser.parsePostUrl(url);
 						continue;
 					}
+				} finally {
+					metrics.redirectCheckTime.observeSince(requestStartTime);
 				}
 			}
 			throw new PostNotFoundException(url);
 		}
 		log.info("Fetched {} bytes in {} ms", content.length, System.currentTimeMillis() - startTime);
+		metrics.fetchedBytes.add(content.length);
+		if (chapterCache != null) {
+			chapterCache.put(requestedSiteAndSlug.site, requestedSiteAndSlug.slug, content, etag, getModified(content));
+		}
 		return content;
 	}
 
-	private void cleanUpContent(byte[] content) {
-		JSONObject json = new JSONObject(new String(content, StandardCharsets.UTF_8));
-		if (!savedBookInfo) {
-			processBookInfo(json);
+	/**
+	 * @return the up-to-date post, or {@code null} if it has to be fetched in full.
+	 */
+	private byte[] revalidate(WordpressUrlParser.SiteAndSlug siteAndSlug, ChapterCache.Entry cached) throws IOException {
+		long startTime = System.currentTimeMillis();
+		if (cached.etag != null) {
+			log.debug("Revalidating cached post with ETag {}", cached.etag);
+			HttpGet request = new HttpGet(WordpressApiUrlBuilder.getPostBySiteAndSlug(siteAndSlug.site, siteAndSlug.slug));
+			request.setHeader("If-None-Match", cached.etag);
+			try (CloseableHttpResponse response = execute(request, siteAndSlug.site)) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode == 304) {
+					log.info("Cached post is up to date, revalidated in {} ms", System.currentTimeMillis() - startTime);
+					return cached.post;
+				}
+				if (statusCode == 200) {
+					byte[] content = readContent(response);
+					log.info("Cached post has changed, fetched {} bytes in {} ms", content.length, System.currentTimeMillis() - startTime);
+					chapterCache.put(siteAndSlug.site, siteAndSlug.slug, content, getETag(response), getModified(content));
+					return content;
+				}
+				log.debug("Revalidation returned code {}", statusCode);
+			}
+		} else if (cached.modified != null) {
+			log.debug("Checking modification time of cached post: {}", cached.modified);
+			HttpGet request = new HttpGet(WordpressApiUrlBuilder.getPostModifiedBySiteAndSlug(siteAndSlug.site, siteAndSlug.slug));
+			try (CloseableHttpResponse response = execute(request, siteAndSlug.site)) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode == 200 && cached.modified.equals(getModified(readContent(response)))) {
+					log.info("Cached post is up to date, revalidated in {} ms", System.currentTimeMillis() - startTime);
+					return cached.post;
+				}
+				log.debug("Modification check returned code {}", statusCode);
+			}
 		}
-		processChapterInfo(json);
-		processChapterContent(json);
+		return null;
 	}
 
-	private void processBookInfo(JSONObject json) {
-		String title = json.getJSONObject("meta").getJSONObject("data").getJSONObject("site").getString("name");
-		log.info("Book title: {}", title);
-		callback.bookTitle(title);
-		savedBookInfo = true;
+	/**
+	 * Sends the request once the rate limiter allows it, and tells the limiter how the host took it.
+	 *
+	 * @throws InterruptedIOException with the thread's interrupted status set, if interrupted while waiting.
+	 */
+	private CloseableHttpResponse execute(HttpUriRequest request, String site) throws IOException {
+		String host = request.getURI().getHost();
+		if (rateLimiter != null) {
+			long waitNanos = rateLimiter.reserve(host, site);
+			metrics.rateLimitWaitTime.observeNanos(waitNanos);
+			if (waitNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the rate limiter");
+				}
+			}
+		}
+		CloseableHttpResponse response = client.execute(request);
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode == 429 || statusCode == 503) {
+			metrics.throttledResponses.increment();
+		}
+		if (rateLimiter != null) {
+			rateLimiter.responded(host, statusCode);
+		}
+		return response;
 	}
 
-	private void processChapterInfo(JSONObject json) {
-		String title = json.getString("title");
-		log.info("Chapter title: {}", title);
-		callback.chapterTitle(title);
+	private static byte[] readContent(CloseableHttpResponse response) throws IOException {
+		long contentLength = response.getEntity().getContentLength();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(contentLength < 0 ? (1 << 15) : (int) contentLength);
+		response.getEntity().writeTo(baos);
+		return baos.toByteArray();
+	}
 
-		String author = json.getJSONObject("author").getString("nice_name");
-		if (!knownAuthors.contains(author)) {
-			knownAuthors.add(author);
-			callback.author(author);
-		}
+	private static String getETag(CloseableHttpResponse response) {
+		Header header = response.getFirstHeader("ETag");
+		return header == null ? null : header.getValue();
+	}
+
+	private static String getModified(byte[] post) {
+		return PostJsonExtractor.extractModified(post);
 	}
 
-	private void processChapterContent(JSONObject json) {
-		for (String line : json.getString("content").split("\n")) {
-			boolean navigationLine = false;
-			if (line.contains(NAV_LINK_SUBSTRING)) {
-				Matcher matcher = NAV_LINK_PATTERN.matcher(line);
-				while (matcher.find()) {
-					navigationLine = true;
-					String linkMarker = matcher.group(NAV_LINK_MARKER_GROUP);
-					log.trace("Found navigation link with marker {}", linkMarker);
-					if (NAV_LINK_NEXT_MARKERS.contains(linkMarker)) {
-						String url = matcher.group(NAV_LINK_URL_GROUP);
-						log.debug("Link to next chapter: {}", url);
-						enqueue(url);
+	private void parse(Chapter chapter, final ChapterSink sink) {
+		final NavigationLinkScanner scanner = options.getNavigationLinkScanner(chapter.siteAndSlug.site);
+		final boolean[] seen = new boolean[2];
+		try {
+			PostJsonExtractor.extract(new ByteArrayInputStream(chapter.content), new PostJsonExtractor.Handler() {
+				@Override
+				public void title(String title) {
+					log.info("Chapter title: {}", title);
+					sink.chapterTitle(title);
+					seen[0] = true;
+				}
+
+				@Override
+				public void author(String niceName) {
+					sink.author(niceName);
+					seen[1] = true;
+				}
+
+				@Override
+				public void siteName(String name) {
+					if (!savedBookInfo) {
+						log.info("Book title: {}", name);
+						sink.bookTitle(name);
+						savedBookInfo = true;
+					}
+				}
+
+				@Override
+				public void modified(String modified) {
+					// only needed by the chapter cache
+				}
+
+				@Override
+				public void contentLine(CharSequence line) {
+					if (!scanner.scan(line, nextLinkListener)) {
+						sink.chapterLine(line.toString());
 					}
 				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("Impossible I/O error on a byte array", e);
+		}
+		if (!savedBookInfo) {
+			throw new JSONException("The post has no site name");
+		}
+		if (!seen[0]) {
+			throw new JSONException("The post has no title");
+		}
+		if (!seen[1]) {
+			throw new JSONException("The post has no author");
+		}
+	}
+
+	private final NavigationLinkScanner.Listener nextLinkListener = new NavigationLinkScanner.Listener() {
+		@Override
+		public void nextLink(String url) {
+			log.debug("Link to next chapter: {}", url);
+			enqueue(url);
+		}
+	};
+
+	/**
+	 * Receives the parsed parts of a chapter, either to pass them to the callback right away
+	 * or to hold them until the callback is ready for the chapter.
+	 */
+	private interface ChapterSink {
+
+		void bookTitle(String title);
+
+		void chapterTitle(String title);
+
+		void author(String author);
+
+		void chapterLine(String line);
+
+	}
+
+	private final ChapterSink callbackSink = new ChapterSink() {
+		@Override
+		public void bookTitle(String title) {
+			callback.bookTitle(title);
+		}
+
+		@Override
+		public void chapterTitle(String title) {
+			callback.chapterTitle(title);
+		}
+
+		@Override
+		public void author(String author) {
+			if (knownAuthors.add(author)) {
+				callback.author(author);
 			}
-			if (!navigationLine) {
-				callback.chapterLine(line);
+		}
+
+		@Override
+		public void chapterLine(String line) {
+			callback.chapterLine(line);
+		}
+	};
+
+	private static final class Chapter implements ChapterSink {
+
+		final int index;
+
+		final String url;
+
+		WordpressUrlParser.SiteAndSlug siteAndSlug;
+
+		long startTime;
+
+		boolean badUrl;
+
+		IOException fetchException;
+
+		RuntimeException parseException;
+
+		byte[] content;
+
+		boolean parsed;
+
+		private String bookTitle;
+
+		private String title;
+
+		private String author;
+
+		private final List<String> lines = new ArrayList<>();
+
+		Chapter(int index, String url) {
+			this.index = index;
+			this.url = url;
+		}
+
+		boolean isFetched() {
+			return content != null;
+		}
+
+		@Override
+		public void bookTitle(String title) {
+			bookTitle = title;
+		}
+
+		@Override
+		public void chapterTitle(String title) {
+			this.title = title;
+		}
+
+		@Override
+		public void author(String author) {
+			this.author = author;
+		}
+
+		@Override
+		public void chapterLine(String line) {
+			lines.add(line);
+		}
+
+		void replay(ChapterSink sink) {
+			if (bookTitle != null) {
+				sink.bookTitle(bookTitle);
+			}
+			sink.chapterTitle(title);
+			sink.author(author);
+			for (String line : lines) {
+				sink.chapterLine(line);
 			}
 		}
+
 	}
 
 }
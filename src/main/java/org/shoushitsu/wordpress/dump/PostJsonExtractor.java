@@ -0,0 +1,442 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls the fields the dumper needs out of a post's JSON without building a tree of it.
+ * <p>
+ * The input is read as UTF-8 through a fixed-size buffer, all other fields are skipped
+ * without being decoded, and the content is handed out line by line, so memory use
+ * depends on the longest line rather than on the size of the post.
+ */
+final class PostJsonExtractor {
+
+	interface Handler {
+
+		void title(String title);
+
+		void author(String niceName);
+
+		void siteName(String name);
+
+		void modified(String modified);
+
+		/**
+		 * Called for each line of the content, after {@link #title(String)} if the post has one.
+		 * Trailing empty lines are dropped, like {@link String#split(String)} does.
+		 * <p>
+		 * The line may be a reused buffer and is only valid until the method returns.
+		 */
+		void contentLine(CharSequence line);
+
+	}
+
+	/**
+	 * Feeds all extracted fields of the post to the handler.
+	 */
+	static void extract(InputStream in, Handler handler) throws IOException {
+		new PostJsonExtractor(in, handler, true).extract();
+	}
+
+	/**
+	 * @return the {@code modified} field of the post, or {@code null} if there is none.
+	 */
+	static String extractModified(byte[] post) {
+		final String[] modified = new String[1];
+		try {
+			new PostJsonExtractor(new ByteArrayInputStream(post), new Handler() {
+				@Override
+				public void title(String title) {
+				}
+
+				@Override
+				public void author(String niceName) {
+				}
+
+				@Override
+				public void siteName(String name) {
+				}
+
+				@Override
+				public void modified(String value) {
+					modified[0] = value;
+				}
+
+				@Override
+				public void contentLine(CharSequence line) {
+				}
+			}, false).extract();
+		} catch (IOException e) {
+			throw new IllegalStateException("Impossible I/O error on a byte array", e);
+		}
+		return modified[0];
+	}
+
+
+	private static final int POST = 0;
+	private static final int AUTHOR = 1;
+	private static final int META = 2;
+	private static final int META_DATA = 3;
+	private static final int META_DATA_SITE = 4;
+	private static final int OTHER = 5;
+
+	private final InputStream in;
+
+	private final Handler handler;
+
+	private final boolean withContent;
+
+	private final byte[] buffer = new byte[8192];
+
+	private int position;
+
+	private int limit;
+
+	private final StringBuilder chars = new StringBuilder();
+
+	private boolean seenTitle;
+
+	private List<String> linesBeforeTitle;
+
+	private PostJsonExtractor(InputStream in, Handler handler, boolean withContent) {
+		this.in = in;
+		this.handler = handler;
+		this.withContent = withContent;
+	}
+
+	private void extract() throws IOException {
+		if (skipWhitespaceAndPeek() != '{') {
+			throw syntaxError("A post must be an object");
+		}
+		readObject(POST);
+		if (linesBeforeTitle != null) {
+			flushLinesBeforeTitle();
+		}
+	}
+
+	private void readObject(int context) throws IOException {
+		expect('{');
+		if (skipWhitespaceAndPeek() == '}') {
+			next();
+			return;
+		}
+		while (true) {
+			if (skipWhitespaceAndPeek() != '"') {
+				throw syntaxError("Expected a key");
+			}
+			String key = readString();
+			if (skipWhitespaceAndPeek() != ':') {
+				throw syntaxError("Expected ':'");
+			}
+			next();
+			readField(context, key);
+			int c = skipWhitespaceAndPeek();
+			next();
+			if (c == '}') {
+				return;
+			}
+			if (c != ',') {
+				throw syntaxError("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private void readField(int context, String key) throws IOException {
+		int c = skipWhitespaceAndPeek();
+		switch (context) {
+			case POST:
+				switch (key) {
+					case "title":
+						if (c == '"') {
+							seenTitle = true;
+							handler.title(readString());
+							if (linesBeforeTitle != null) {
+								flushLinesBeforeTitle();
+							}
+							return;
+						}
+						break;
+					case "modified":
+						if (c == '"') {
+							handler.modified(readString());
+							return;
+						}
+						break;
+					case "content":
+						if (c == '"' && withContent) {
+							readContent();
+							return;
+						}
+						break;
+					case "author":
+						if (c == '{') {
+							readObject(AUTHOR);
+							return;
+						}
+						break;
+					case "meta":
+						if (c == '{') {
+							readObject(META);
+							return;
+						}
+						break;
+				}
+				break;
+			case AUTHOR:
+				if (c == '"' && key.equals("nice_name")) {
+					handler.author(readString());
+					return;
+				}
+				break;
+			case META:
+				if (c == '{' && key.equals("data")) {
+					readObject(META_DATA);
+					return;
+				}
+				break;
+			case META_DATA:
+				if (c == '{' && key.equals("site")) {
+					readObject(META_DATA_SITE);
+					return;
+				}
+				break;
+			case META_DATA_SITE:
+				if (c == '"' && key.equals("name")) {
+					handler.siteName(readString());
+					return;
+				}
+				break;
+		}
+		skipValue();
+	}
+
+	private void skipValue() throws IOException {
+		int c = skipWhitespaceAndPeek();
+		switch (c) {
+			case '"':
+				skipString();
+				break;
+			case '{':
+				readObject(OTHER);
+				break;
+			case '[':
+				next();
+				if (skipWhitespaceAndPeek() == ']') {
+					next();
+					break;
+				}
+				while (true) {
+					skipValue();
+					c = skipWhitespaceAndPeek();
+					next();
+					if (c == ']') {
+						break;
+					}
+					if (c != ',') {
+						throw syntaxError("Expected ',' or ']'");
+					}
+				}
+				break;
+			default:
+				// number, boolean or null
+				while ((c = peek()) != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+					next();
+				}
+		}
+	}
+
+	private String readString() throws IOException {
+		chars.setLength(0);
+		expect('"');
+		while (readChar()) {
+			// keep going
+		}
+		return chars.toString();
+	}
+
+	private void readContent() throws IOException {
+		chars.setLength(0);
+		expect('"');
+		boolean emptyContent = true;
+		boolean emittedAny = false;
+		int pendingEmptyLines = 0;
+		boolean more;
+		do {
+			more = readChar();
+			if (more) {
+				emptyContent = false;
+				if (chars.charAt(chars.length() - 1) != '\n') {
+					continue;
+				}
+				chars.setLength(chars.length() - 1);
+			}
+			if (chars.length() == 0) {
+				++pendingEmptyLines;
+			} else {
+				for (; pendingEmptyLines > 0; --pendingEmptyLines) {
+					contentLine("");
+				}
+				contentLine(chars);
+				emittedAny = true;
+				chars.setLength(0);
+			}
+		} while (more);
+		if (emptyContent && !emittedAny) {
+			contentLine("");
+		}
+	}
+
+	private void contentLine(CharSequence line) {
+		if (seenTitle) {
+			handler.contentLine(line);
+		} else {
+			if (linesBeforeTitle == null) {
+				linesBeforeTitle = new ArrayList<>();
+			}
+			linesBeforeTitle.add(line.toString());
+		}
+	}
+
+	private void flushLinesBeforeTitle() {
+		for (String line : linesBeforeTitle) {
+			handler.contentLine(line);
+		}
+		linesBeforeTitle = null;
+	}
+
+	private void skipString() throws IOException {
+		expect('"');
+		int c;
+		while ((c = next()) != '"') {
+			if (c == '\\') {
+				next();
+			}
+		}
+	}
+
+	/**
+	 * Decodes one character of a string into {@link #chars}.
+	 *
+	 * @return {@code false} if the closing quote was reached instead.
+	 */
+	private boolean readChar() throws IOException {
+		int c = next();
+		if (c == '"') {
+			return false;
+		}
+		if (c == '\\') {
+			c = next();
+			switch (c) {
+				case 'n':
+					chars.append('\n');
+					break;
+				case 't':
+					chars.append('\t');
+					break;
+				case 'r':
+					chars.append('\r');
+					break;
+				case 'b':
+					chars.append('\b');
+					break;
+				case 'f':
+					chars.append('\f');
+					break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; ++i) {
+						int digit = Character.digit(next(), 16);
+						if (digit < 0) {
+							throw syntaxError("Bad \\u escape");
+						}
+						code = (code << 4) | digit;
+					}
+					chars.append((char) code);
+					break;
+				default:
+					chars.append((char) c);
+			}
+		} else if (c < 0x80) {
+			chars.append((char) c);
+		} else {
+			int extraBytes;
+			int codePoint;
+			if ((c & 0xE0) == 0xC0) {
+				extraBytes = 1;
+				codePoint = c & 0x1F;
+			} else if ((c & 0xF0) == 0xE0) {
+				extraBytes = 2;
+				codePoint = c & 0x0F;
+			} else if ((c & 0xF8) == 0xF0) {
+				extraBytes = 3;
+				codePoint = c & 0x07;
+			} else {
+				throw syntaxError("Bad UTF-8 lead byte");
+			}
+			for (int i = 0; i < extraBytes; ++i) {
+				int b = next();
+				if ((b & 0xC0) != 0x80) {
+					throw syntaxError("Bad UTF-8 continuation byte");
+				}
+				codePoint = (codePoint << 6) | (b & 0x3F);
+			}
+			chars.appendCodePoint(codePoint);
+		}
+		return true;
+	}
+
+	private void expect(char expected) throws IOException {
+		if (next() != expected) {
+			throw syntaxError("Expected '" + expected + "'");
+		}
+	}
+
+	private int skipWhitespaceAndPeek() throws IOException {
+		int c;
+		while (isWhitespace(c = peek())) {
+			next();
+		}
+		return c;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private int peek() throws IOException {
+		if (position == limit) {
+			fill();
+		}
+		return buffer[position] & 0xFF;
+	}
+
+	private int next() throws IOException {
+		if (position == limit) {
+			fill();
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	private void fill() throws IOException {
+		int read;
+		do {
+			read = in.read(buffer);
+		} while (read == 0);
+		if (read < 0) {
+			throw syntaxError("Unexpected end of input");
+		}
+		position = 0;
+		limit = read;
+	}
+
+	private static JSONException syntaxError(String message) {
+		return new JSONException(message);
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spaces out requests so that all dumps of the process together stay under the API's rate limit.
+ * Each host gets a budget, and each site gets its own, smaller one, so that a few big sites don't
+ * use up the budget of the host for everyone else.
+ * <p>
+ * The budget of a host adapts to what the host will take: it is halved when the host answers 429 or 503,
+ * at most once per second, and grows back by a hundredth of its configured rate with each other response.
+ * <p>
+ * Taking a permit doesn't lock: a budget is a token bucket in its "virtual scheduling" form, whose whole
+ * state is the time at which the bucket would be full again, updated by compare-and-set.
+ */
+public class RateLimiter {
+
+	private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+	private static final long SLOWDOWN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * How far below its configured rate a host's budget may go, and how many steps it takes to grow back.
+	 */
+	private static final int ADAPTATION_RANGE = 100;
+
+	private static final class Bucket {
+
+		private final String name;
+
+		/**
+		 * At the configured rate; the current interval is never shorter.
+		 */
+		private final long minIntervalNanos;
+
+		private final int burst;
+
+		private final AtomicLong intervalNanos;
+
+		/**
+		 * When the next request would be due if requests had been sent exactly at the rate.
+		 * Up to {@code burst} requests may be sent ahead of that.
+		 */
+		private final AtomicLong dueNanos = new AtomicLong(System.nanoTime());
+
+		private final AtomicLong lastSlowdownNanos = new AtomicLong(System.nanoTime() - SLOWDOWN_INTERVAL_NANOS);
+
+		Bucket(String name, double perSecond, int burst) {
+			this.name = name;
+			this.minIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+			this.burst = burst;
+			this.intervalNanos = new AtomicLong(minIntervalNanos);
+		}
+
+		/**
+		 * @return how long the request has to wait, in nanoseconds.
+		 */
+		long reserve(long now) {
+			long interval = intervalNanos.get();
+			long tolerance = (burst - 1) * interval;
+			while (true) {
+				long due = dueNanos.get();
+				if (dueNanos.compareAndSet(due, Math.max(due, now) + interval)) {
+					return Math.max(due - tolerance - now, 0);
+				}
+			}
+		}
+
+		void slowDown(long now) {
+			long lastSlowdown = lastSlowdownNanos.get();
+			if (now - lastSlowdown < SLOWDOWN_INTERVAL_NANOS || !lastSlowdownNanos.compareAndSet(lastSlowdown, now)) {
+				// someone else has just reacted to the same throttling
+				return;
+			}
+			long maxInterval = minIntervalNanos * ADAPTATION_RANGE;
+			while (true) {
+				long interval = intervalNanos.get();
+				long slower = Math.min(interval * 2, maxInterval);
+				if (intervalNanos.compareAndSet(interval, slower)) {
+					log.warn("Throttled by {}, slowing down to {} requests per second", name, perSecond(slower));
+					return;
+				}
+			}
+		}
+
+		void speedUp() {
+			while (true) {
+				long interval = intervalNanos.get();
+				if (interval == minIntervalNanos) {
+					return;
+				}
+				// the rate, not the interval, grows by a fixed step
+				double perNano = 1.0 / interval + 1.0 / ((double) minIntervalNanos * ADAPTATION_RANGE);
+				long faster = Math.max((long) (1 / perNano), minIntervalNanos);
+				if (intervalNanos.compareAndSet(interval, faster)) {
+					return;
+				}
+			}
+		}
+
+		private static double perSecond(long intervalNanos) {
+			return (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+		}
+
+	}
+
+	private final double hostPerSecond;
+
+	private final double sitePerSecond;
+
+	private final int burst;
+
+	private final ConcurrentMap<String, Bucket> bucketByHost = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Bucket> bucketBySite = new ConcurrentHashMap<>();
+
+	/**
+	 * @param hostPerSecond requests per second to each host, or 0 for no limit.
+	 * @param sitePerSecond requests per second about each site, or 0 for no limit.
+	 * @param burst         how many requests may be sent at once after a quiet period.
+	 */
+	public RateLimiter(double hostPerSecond, double sitePerSecond, int burst) {
+		this.hostPerSecond = hostPerSecond;
+		this.sitePerSecond = sitePerSecond;
+		this.burst = Math.max(burst, 1);
+	}
+
+	/**
+	 * Takes a permit for a request to the host about the site. A request to a site's own host,
+	 * like that for a post page, only counts against the site's budget.
+	 *
+	 * @param host the host the request goes to, or {@code null} if it is unknown.
+	 * @return how long to wait before sending the request, in nanoseconds.
+	 */
+	long reserve(String host, String site) {
+		long now = System.nanoTime();
+		long wait = 0;
+		if (host != null && !host.equals(site) && hostPerSecond > 0) {
+			wait = getBucket(bucketByHost, host, hostPerSecond).reserve(now);
+		}
+		if (sitePerSecond > 0) {
+			wait = Math.max(wait, getBucket(bucketBySite, site, sitePerSecond).reserve(now));
+		}
+		return wait;
+	}
+
+	/**
+	 * Adapts the budget of the host to its response.
+	 */
+	void responded(String host, int statusCode) {
+		if (host == null || hostPerSecond <= 0) {
+			return;
+		}
+		Bucket bucket = bucketByHost.get(host);
+		if (bucket == null) {
+			return;
+		}
+		if (statusCode == 429 || statusCode == 503) {
+			bucket.slowDown(System.nanoTime());
+		} else {
+			bucket.speedUp();
+		}
+	}
+
+	private Bucket getBucket(ConcurrentMap<String, Bucket> bucketByName, String name, double perSecond) {
+		Bucket bucket = bucketByName.get(name);
+		if (bucket == null) {
+			Bucket newBucket = new Bucket(name, perSecond, burst);
+			bucket = bucketByName.putIfAbsent(name, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		return bucket;
+	}
+
+}
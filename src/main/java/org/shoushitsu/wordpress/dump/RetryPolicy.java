@@ -0,0 +1,69 @@
+package org.shoushitsu.wordpress.dump;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How many times a post fetch is attempted and how long to wait in between: exponential backoff
+ * with jitter, so that dumps that failed together don't retry together, or longer if the API
+ * asked for it with {@code Retry-After}.
+ */
+public class RetryPolicy {
+
+	private final int maxAttempts;
+
+	private final long baseDelayMillis;
+
+	private final long maxDelayMillis;
+
+	/**
+	 * @param maxAttempts     including the first one.
+	 * @param baseDelayMillis the delay after the first attempt, before jitter; it doubles with each attempt.
+	 * @param maxDelayMillis  the longest delay before jitter. A {@code Retry-After} longer than this
+	 *                        makes the fetch fail right away.
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Reads the policy from {@code wpdump.retry.maxAttempts}, {@code wpdump.retry.baseMillis}
+	 * and {@code wpdump.retry.maxMillis}.
+	 */
+	public static RetryPolicy fromSystemProperties() {
+		return new RetryPolicy(
+				Integer.getInteger("wpdump.retry.maxAttempts", 3),
+				Long.getLong("wpdump.retry.baseMillis", 1000),
+				Long.getLong("wpdump.retry.maxMillis", 30 * 1000)
+		);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param attempt the attempt that failed, starting from 1.
+	 * @param e       why it failed.
+	 * @return how long to wait before the next attempt, or -1 if there should be none.
+	 */
+	long getDelayMillis(int attempt, IOException e) {
+		if (attempt >= maxAttempts) {
+			return -1;
+		}
+		long ceiling = Math.min(baseDelayMillis << Math.min(attempt - 1, 30), maxDelayMillis);
+		// half of it fixed, half random
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		if (e instanceof TransientFetchException) {
+			long retryAfter = ((TransientFetchException) e).getRetryAfterMillis();
+			if (retryAfter > maxDelayMillis) {
+				return -1;
+			}
+			delay = Math.max(delay, retryAfter);
+		}
+		return delay;
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps dumps from hammering a site that is down. After a number of failed fetches in a row from a site,
+ * its breaker opens: fetches from the site fail right away, without a request, for a while. Then requests
+ * are let through again; the first success closes the breaker, a failure opens it again.
+ * <p>
+ * Shared by all dumps with the same {@link DumpOptions}.
+ */
+public class SiteCircuitBreaker {
+
+	/**
+	 * A fetch that wasn't attempted because the breaker of its site is open.
+	 */
+	public static class OpenException extends IOException {
+
+		OpenException(String site, long remainingMillis) {
+			super("Site " + site + " is paused for another " + remainingMillis + " ms after failing repeatedly");
+		}
+
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(SiteCircuitBreaker.class);
+
+	private static final class State {
+
+		int consecutiveFailures;
+
+		/**
+		 * A {@link System#nanoTime()} reading, meaningful once the failures reach the threshold.
+		 */
+		long openUntilNanos;
+
+	}
+
+	private final int failureThreshold;
+
+	private final long openNanos;
+
+	/**
+	 * Only sites with failures since their last success.
+	 */
+	private final Map<String, State> stateBySite = new HashMap<>();
+
+	/**
+	 * @param failureThreshold how many failed fetches in a row open the breaker.
+	 * @param openMillis       how long it stays open, unless the API asked for longer with {@code Retry-After}.
+	 */
+	public SiteCircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * @return how long fetches from the site should fail right away, in milliseconds, or 0 if they may go ahead.
+	 */
+	public synchronized long getRemainingOpenMillis(String site) {
+		State state = stateBySite.get(site);
+		if (state == null || state.consecutiveFailures < failureThreshold) {
+			return 0;
+		}
+		long remainingNanos = state.openUntilNanos - System.nanoTime();
+		// round up, so that waiting for this long is enough
+		return remainingNanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1;
+	}
+
+	/**
+	 * Records that the site answered.
+	 */
+	public synchronized void succeeded(String site) {
+		State state = stateBySite.remove(site);
+		if (state != null && state.consecutiveFailures >= failureThreshold) {
+			log.info("Site {} has recovered", site);
+		}
+	}
+
+	/**
+	 * Records a failed fetch from the site.
+	 *
+	 * @param retryAfterMillis how long the API asked to wait, or 0.
+	 * @return whether this failure opened the breaker.
+	 */
+	public synchronized boolean failed(String site, long retryAfterMillis) {
+		State state = stateBySite.get(site);
+		if (state == null) {
+			state = new State();
+			stateBySite.put(site, state);
+		}
+		long now = System.nanoTime();
+		if (state.consecutiveFailures >= failureThreshold && state.openUntilNanos - now > 0) {
+			// a request that was sent before the breaker opened
+			return false;
+		}
+		if (++state.consecutiveFailures < failureThreshold) {
+			return false;
+		}
+		long openNanos = Math.max(this.openNanos, TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+		state.openUntilNanos = now + openNanos;
+		log.warn("Site {} failed {} times in a row, pausing it for {} ms", site, state.consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(openNanos));
+		return true;
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Slug index of the posts of the sites visited by one dump, filled by paging through
+ * the sites' post listings. Posts are kept in the same serialized form the single post
+ * endpoint returns, so the rest of the dumper doesn't care where they came from.
+ * <p>
+ * The pages are fetched by the dumper, which sends them through the same rate limiter,
+ * circuit breaker and retries as single posts.
+ */
+class SitePostIndex {
+
+	static final int PAGE_SIZE = 100;
+
+	interface PageFetcher {
+
+		/**
+		 * @param page the page of the listing, starting from 1, of {@link #PAGE_SIZE} posts each.
+		 * @return the listing page as the API returned it.
+		 */
+		byte[] fetchPage(String site, int page) throws IOException, InterruptedException;
+
+	}
+
+	private final PageFetcher fetcher;
+
+	private final Logger log;
+
+	private final Map<String, Map<String, byte[]>> postBySlugBySite = new HashMap<>();
+
+	SitePostIndex(PageFetcher fetcher, Logger log) {
+		this.fetcher = fetcher;
+		this.log = log;
+	}
+
+	/**
+	 * @return the post, or {@code null} if it isn't in the site's listing
+	 * or the listing couldn't be loaded.
+	 */
+	byte[] get(String site, String slug) throws InterruptedException {
+		Map<String, byte[]> postBySlug = postBySlugBySite.get(site);
+		if (postBySlug == null) {
+			postBySlug = load(site);
+			postBySlugBySite.put(site, postBySlug);
+		}
+		return postBySlug.remove(slug);
+	}
+
+	private Map<String, byte[]> load(String site) throws InterruptedException {
+		log.info("Loading post index of site {}", site);
+		long startTime = System.currentTimeMillis();
+		Map<String, byte[]> postBySlug = new HashMap<>();
+		try {
+			for (int page = 1; ; ++page) {
+				JSONArray posts = fetchPage(site, page);
+				for (int i = 0; i < posts.length(); ++i) {
+					JSONObject post = posts.getJSONObject(i);
+					postBySlug.put(post.getString("slug"), post.toString().getBytes(StandardCharsets.UTF_8));
+				}
+				if (posts.length() < PAGE_SIZE) {
+					break;
+				}
+			}
+		} catch (IOException | JSONException e) {
+			log.warn("Error while loading post index, will use what was loaded so far", e);
+		}
+		log.info("Indexed {} posts in {} ms", postBySlug.size(), System.currentTimeMillis() - startTime);
+		return postBySlug;
+	}
+
+	private JSONArray fetchPage(String site, int page) throws IOException, InterruptedException {
+		log.debug("Fetching post listing page {}", page);
+		return new JSONObject(new String(fetcher.fetchPage(site, page), StandardCharsets.UTF_8)).getJSONArray("posts");
+	}
+
+}
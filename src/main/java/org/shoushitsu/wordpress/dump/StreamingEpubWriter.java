@@ -0,0 +1,210 @@
+package org.shoushitsu.wordpress.dump;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes an EPUB book chapter by chapter, straight into the target stream.
+ * <p>
+ * Only the titles and file names of the chapters are kept in memory; the package document
+ * and the table of contents, which need the whole list, are written when the writer is closed.
+ * The target stream is closed too.
+ */
+public class StreamingEpubWriter implements Closeable {
+
+	private static final String MIMETYPE = "application/epub+zip";
+
+	private static final String CONTENT_DIR = "OEBPS/";
+	private static final String OPF_FILE = "content.opf";
+	private static final String NCX_FILE = "toc.ncx";
+
+	private static final class ChapterRef {
+
+		final String title;
+
+		final String href;
+
+		ChapterRef(String title, String href) {
+			this.title = title;
+			this.href = href;
+		}
+
+	}
+
+	private final ZipOutputStream zip;
+
+	private final Writer zipWriter;
+
+	private final String identifier = "urn:uuid:" + UUID.randomUUID();
+
+	private final List<String> titles = new ArrayList<>();
+
+	private final List<String> authors = new ArrayList<>();
+
+	private final List<ChapterRef> chapters = new ArrayList<>();
+
+	public StreamingEpubWriter(OutputStream out) throws IOException {
+		zip = new ZipOutputStream(out);
+		// entries are closed explicitly, the writer must never close the zip stream itself
+		zipWriter = new OutputStreamWriter(new FilterOutputStream(zip) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		}, StandardCharsets.UTF_8);
+		writeMimetype();
+		putEntry("META-INF/container.xml");
+		zipWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+				"<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n" +
+				"<rootfiles>\n" +
+				"<rootfile full-path=\"" + CONTENT_DIR + OPF_FILE + "\" media-type=\"application/oebps-package+xml\"/>\n" +
+				"</rootfiles>\n" +
+				"</container>\n");
+		closeEntry();
+	}
+
+	public void addTitle(String title) {
+		titles.add(title);
+	}
+
+	public void addAuthor(String author) {
+		authors.add(author);
+	}
+
+	/**
+	 * Compresses the chapter into the book right away.
+	 */
+	public void addChapter(String title, String href, CharSequence xhtml) throws IOException {
+		putEntry(CONTENT_DIR + href);
+		zipWriter.append(xhtml);
+		closeEntry();
+		chapters.add(new ChapterRef(title, href));
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writeOpf();
+			writeNcx();
+			zip.finish();
+		} finally {
+			zip.close();
+		}
+	}
+
+	private void writeMimetype() throws IOException {
+		byte[] bytes = MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+		ZipEntry entry = new ZipEntry("mimetype");
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(bytes.length);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		entry.setCrc(crc.getValue());
+		zip.putNextEntry(entry);
+		zip.write(bytes);
+		zip.closeEntry();
+	}
+
+	private void writeOpf() throws IOException {
+		putEntry(CONTENT_DIR + OPF_FILE);
+		zipWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+				"<package xmlns=\"http://www.idpf.org/2007/opf\" version=\"2.0\" unique-identifier=\"BookId\">\n" +
+				"<metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:opf=\"http://www.idpf.org/2007/opf\">\n" +
+				"<dc:identifier id=\"BookId\">" + identifier + "</dc:identifier>\n");
+		for (String title : titles) {
+			zipWriter.write("<dc:title>" + escape(title) + "</dc:title>\n");
+		}
+		for (String author : authors) {
+			zipWriter.write("<dc:creator opf:role=\"aut\">" + escape(author) + "</dc:creator>\n");
+		}
+		zipWriter.write("<dc:language>en</dc:language>\n" +
+				"</metadata>\n" +
+				"<manifest>\n" +
+				"<item id=\"ncx\" href=\"" + NCX_FILE + "\" media-type=\"application/x-dtbncx+xml\"/>\n");
+		for (int i = 0; i < chapters.size(); ++i) {
+			zipWriter.write("<item id=\"chapter" + i + "\" href=\"" + escape(chapters.get(i).href) + "\" media-type=\"application/xhtml+xml\"/>\n");
+		}
+		zipWriter.write("</manifest>\n" +
+				"<spine toc=\"ncx\">\n");
+		for (int i = 0; i < chapters.size(); ++i) {
+			zipWriter.write("<itemref idref=\"chapter" + i + "\"/>\n");
+		}
+		zipWriter.write("</spine>\n" +
+				"</package>\n");
+		closeEntry();
+	}
+
+	private void writeNcx() throws IOException {
+		putEntry(CONTENT_DIR + NCX_FILE);
+		zipWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+				"<ncx xmlns=\"http://www.daisy.org/z3986/2005/ncx/\" version=\"2005-1\">\n" +
+				"<head>\n" +
+				"<meta name=\"dtb:uid\" content=\"" + identifier + "\"/>\n" +
+				"<meta name=\"dtb:depth\" content=\"1\"/>\n" +
+				"<meta name=\"dtb:totalPageCount\" content=\"0\"/>\n" +
+				"<meta name=\"dtb:maxPageNumber\" content=\"0\"/>\n" +
+				"</head>\n" +
+				"<docTitle><text>" + escape(titles.isEmpty() ? "" : titles.get(0)) + "</text></docTitle>\n" +
+				"<navMap>\n");
+		for (int i = 0; i < chapters.size(); ++i) {
+			ChapterRef chapter = chapters.get(i);
+			zipWriter.write("<navPoint id=\"navPoint-" + (i + 1) + "\" playOrder=\"" + (i + 1) + "\">\n" +
+					"<navLabel><text>" + escape(chapter.title) + "</text></navLabel>\n" +
+					"<content src=\"" + escape(chapter.href) + "\"/>\n" +
+					"</navPoint>\n");
+		}
+		zipWriter.write("</navMap>\n" +
+				"</ncx>\n");
+		closeEntry();
+	}
+
+	private void putEntry(String name) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+	}
+
+	private void closeEntry() throws IOException {
+		zipWriter.flush();
+		zip.closeEntry();
+	}
+
+	private static String escape(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,63 @@
+package org.shoushitsu.wordpress.dump;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * The API answered, but with an error that may go away: it is overloaded, rate limiting us or down.
+ */
+public class TransientFetchException extends IOException {
+
+	private final int statusCode;
+
+	private final long retryAfterMillis;
+
+	TransientFetchException(String url, int statusCode, long retryAfterMillis) {
+		super("Status code " + statusCode + " for " + url);
+		this.statusCode = statusCode;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	/**
+	 * @throws TransientFetchException if the response is a 429 or a server error.
+	 */
+	static void check(String url, HttpResponse response) throws TransientFetchException {
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode == 429 || statusCode >= 500) {
+			throw new TransientFetchException(url, statusCode, parseRetryAfter(response.getFirstHeader("Retry-After")));
+		}
+	}
+
+	/**
+	 * @return the delay in milliseconds, or 0 if there is none.
+	 */
+	private static long parseRetryAfter(Header header) {
+		if (header == null) {
+			return 0;
+		}
+		String value = header.getValue().trim();
+		try {
+			return Math.max(Long.parseLong(value) * 1000, 0);
+		} catch (NumberFormatException e) {
+			// not delta-seconds, so it should be a date
+		}
+		Date date = DateUtils.parseDate(value);
+		return date == null ? 0 : Math.max(date.getTime() - System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * @return how long the API asked us to wait before trying again, in milliseconds, or 0 if it didn't say.
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+}
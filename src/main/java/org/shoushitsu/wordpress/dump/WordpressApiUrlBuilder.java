@@ -2,10 +2,48 @@ package org.shoushitsu.wordpress.dump;
 
 public class WordpressApiUrlBuilder {
 
-	private static final String API_URL_PREFIX = "https://public-api.wordpress.com/rest/v1";
+	private static final String DEFAULT_API_URL_PREFIX = "https://public-api.wordpress.com/rest/v1";
+
+	/**
+	 * Can be pointed elsewhere, like at a local stand-in for load testing, with {@code -Dwpdump.apiBase=<url>}.
+	 */
+	private static volatile String apiUrlPrefix = System.getProperty("wpdump.apiBase", DEFAULT_API_URL_PREFIX);
+
+	public static String getApiBase() {
+		return apiUrlPrefix;
+	}
+
+	/**
+	 * @param apiBase the URL that API paths like {@code /sites/...} are appended to, without a trailing slash.
+	 */
+	public static void setApiBase(String apiBase) {
+		apiUrlPrefix = apiBase;
+	}
+
+	/**
+	 * The top-level fields of a post that the dumper reads. Leaving out the rest, like attachments,
+	 * tags and discussion data, makes posts much smaller.
+	 */
+	private static final String POST_FIELDS = "title,author,content,modified";
 
 	public static String getPostBySiteAndSlug(String site, String slug) {
-		return String.format(API_URL_PREFIX + "/sites/%s/posts/slug:%s", site, slug);
+		return getPostBySiteAndSlug(site, slug, false);
+	}
+
+	/**
+	 * @param withSiteMeta whether to include metadata about the site, like its name.
+	 */
+	public static String getPostBySiteAndSlug(String site, String slug, boolean withSiteMeta) {
+		String url = String.format("%s/sites/%s/posts/slug:%s?fields=", apiUrlPrefix, site, slug) + POST_FIELDS;
+		return withSiteMeta ? url + ",meta&meta=site" : url;
+	}
+
+	public static String getPostModifiedBySiteAndSlug(String site, String slug) {
+		return String.format("%s/sites/%s/posts/slug:%s?fields=modified", apiUrlPrefix, site, slug);
+	}
+
+	public static String getPostsBySite(String site, int number, int page) {
+		return String.format("%s/sites/%s/posts/?number=%d&page=%d&fields=slug,", apiUrlPrefix, site, number, page) + POST_FIELDS;
 	}
 
 }
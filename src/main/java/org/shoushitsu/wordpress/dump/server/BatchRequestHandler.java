@@ -0,0 +1,153 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.simpleframework.http.Request;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dumps many books at once. A {@code POST} with a JSON body like {@code {"urls": [...]}} schedules a task
+ * for each first chapter URL that doesn't have one yet, all together, and returns the id of the batch.
+ * A request with the {@code id} parameter returns the status of every book of the batch, with the download
+ * path of the ready ones, and counts of the books by status.
+ */
+class BatchRequestHandler extends AJsonHandler {
+
+	private static final String P_ID = "id";
+	private static final String P_URLS = "urls";
+	private static final JSONObject MISSING_URLS;
+	private static final JSONObject MISSING_ID;
+	static {
+		MISSING_URLS = new JSONObject();
+		MISSING_URLS.put("status", "missing_param");
+		MISSING_URLS.put("params", Arrays.asList(P_URLS));
+		MISSING_ID = new JSONObject();
+		MISSING_ID.put("status", "missing_param");
+		MISSING_ID.put("params", Arrays.asList(P_ID));
+	}
+	private static final JSONObject OVERLOADED = new JSONObject(Collections.singletonMap("status", "overloaded"));
+	private static final JSONObject UNKNOWN_BATCH = new JSONObject(Collections.singletonMap("status", "unknown_batch"));
+
+	private static final JSONObject JSON_EXPIRED = new JSONObject(Collections.singletonMap("status", "expired"));
+
+	/**
+	 * As long as a ready book is kept; a batch is of no use once its books are gone.
+	 */
+	private static final long BATCH_TTL = 60 * 60 * 1000;
+
+	private final ConcurrentMap<String, List<String>> urlsByBatchId = new ConcurrentHashMap<>();
+
+	private final TaskCleanupQueue<String> batchCleanupQueue = new TaskCleanupQueue<String>() {
+		@Override
+		protected void purge(String item) {
+			urlsByBatchId.remove(item);
+		}
+	};
+
+	private final DumpRequestHandler dumpHandler;
+
+	BatchRequestHandler(DumpRequestHandler dumpHandler, ScheduledExecutorService executor) {
+		super(LoggerFactory.getLogger(BatchRequestHandler.class));
+		this.dumpHandler = dumpHandler;
+		executor.scheduleAtFixedRate(
+				batchCleanupQueue,
+				TaskCleanupQueue.TICK_MILLIS,
+				TaskCleanupQueue.TICK_MILLIS,
+				TimeUnit.MILLISECONDS
+		);
+	}
+
+	@Override
+	protected JSONObject handle(Request req) {
+		if (req.getMethod().equals("POST")) {
+			return create(req);
+		}
+		String id = req.getParameter(P_ID);
+		if (id == null) {
+			log.info("Bad request: missing parameter: id");
+			return MISSING_ID;
+		}
+		List<String> urls = urlsByBatchId.get(id);
+		if (urls == null) {
+			return UNKNOWN_BATCH;
+		}
+		return makeBatchResponse(id, urls);
+	}
+
+	private JSONObject create(Request req) {
+		Set<String> urls = new LinkedHashSet<>();
+		try {
+			JSONArray urlArray = new JSONObject(req.getContent()).getJSONArray(P_URLS);
+			for (int i = 0; i < urlArray.length(); ++i) {
+				urls.add(urlArray.getString(i).trim());
+			}
+		} catch (IOException | JSONException e) {
+			log.info("Bad request: no URL list: {}", e.toString());
+			return MISSING_URLS;
+		}
+		if (urls.isEmpty()) {
+			log.info("Bad request: empty URL list");
+			return MISSING_URLS;
+		}
+		log.info("Asked to dump a batch of {} URLs", urls.size());
+
+		if (!dumpHandler.dumpAll(urls)) {
+			return OVERLOADED;
+		}
+		String id = UUID.randomUUID().toString();
+		List<String> urlList = Collections.unmodifiableList(new ArrayList<>(urls));
+		urlsByBatchId.put(id, urlList);
+		batchCleanupQueue.enqueue(id, BATCH_TTL);
+		return makeBatchResponse(id, urlList);
+	}
+
+	private JSONObject makeBatchResponse(String id, List<String> urls) {
+		JSONArray books = new JSONArray();
+		JSONObject countByStatus = new JSONObject();
+		for (String url : urls) {
+			DumpTask task = dumpHandler.getTask(url);
+			JSONObject status = task == null ? JSON_EXPIRED : task.getStatusAsJson();
+			countByStatus.increment(status.getString("status"));
+			JSONObject book = new JSONObject();
+			book.put("url", url);
+			book.put("task", status);
+			if (task != null && task.isReady() && task.getBookTitle() != null) {
+				book.put("title", task.getBookTitle());
+				book.put("download", "/get?url=" + encode(url));
+			}
+			books.put(book);
+		}
+		JSONObject batch = new JSONObject();
+		batch.put(P_ID, id);
+		batch.put("counts", countByStatus);
+		batch.put("books", books);
+		JSONObject resp = makeOkResponse();
+		resp.put("batch", batch);
+		return resp;
+	}
+
+	private static String encode(String url) {
+		try {
+			return URLEncoder.encode(url, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import io.otonashi.cache.ContentStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps track of the book files in the cache by the hash of their content, so that tasks that
+ * produce the same book share one file. Each task holds a reference to the file of its book;
+ * the file is removed from the cache when the last reference is released.
+ */
+class BookStore {
+
+	static final class Blob {
+
+		final String key;
+
+		final long length;
+
+		/**
+		 * Wall clock time, in milliseconds.
+		 */
+		final long writtenAt;
+
+		private int references;
+
+		Blob(String key, long length, long writtenAt) {
+			this.key = key;
+			this.length = length;
+			this.writtenAt = writtenAt;
+		}
+
+	}
+
+	private final Logger log = LoggerFactory.getLogger(BookStore.class);
+
+	private final ContentStorage storage;
+
+	private final Map<String, Blob> blobByHash = new HashMap<>();
+
+	BookStore(ContentStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * @return a cache key for a new book file.
+	 */
+	String newKey() {
+		return "book/" + UUID.randomUUID();
+	}
+
+	/**
+	 * @return the file of a book with this content, with a new reference to it,
+	 * or {@code null} if there is no such file.
+	 */
+	synchronized Blob acquire(String hash) {
+		Blob blob = blobByHash.get(hash);
+		if (blob != null) {
+			++blob.references;
+		}
+		return blob;
+	}
+
+	/**
+	 * Registers a book file that has just been written, with a reference to it. If a file with the same content
+	 * got registered in the meantime, that one is referenced instead and the new one is removed from the cache.
+	 */
+	synchronized Blob add(String hash, String key, long length) {
+		return add(hash, key, length, System.currentTimeMillis());
+	}
+
+	/**
+	 * Registers a book file that was written before a restart, with a reference to it.
+	 *
+	 * @see #add(String, String, long)
+	 */
+	synchronized Blob add(String hash, String key, long length, long writtenAt) {
+		Blob blob = blobByHash.get(hash);
+		if (blob == null) {
+			blob = new Blob(key, length, writtenAt);
+			blobByHash.put(hash, blob);
+		} else if (!blob.key.equals(key)) {
+			log.info("Book file {} duplicates {}, removing it", key, blob.key);
+			storage.expire(key);
+		}
+		++blob.references;
+		return blob;
+	}
+
+	synchronized void release(String hash) {
+		Blob blob = blobByHash.get(hash);
+		if (blob == null) {
+			log.warn("Released an unknown book file with hash {}", hash);
+			return;
+		}
+		if (--blob.references == 0) {
+			log.info("Removing book file {}", blob.key);
+			blobByHash.remove(hash);
+			storage.expire(blob.key);
+		}
+	}
+
+}
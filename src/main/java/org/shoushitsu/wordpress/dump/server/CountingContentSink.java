@@ -0,0 +1,54 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import io.otonashi.cache.ContentSink;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a cache entry, so that the book can be served with a length
+ * without asking the storage.
+ */
+class CountingContentSink implements ContentSink {
+
+	private final ContentSink sink;
+
+	private OutputStream out;
+
+	private long count;
+
+	CountingContentSink(ContentSink sink) {
+		this.sink = sink;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new FilterOutputStream(sink.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					++count;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					count += len;
+				}
+			};
+		}
+		return out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		sink.close();
+	}
+
+}
@@ -4,13 +4,22 @@ import io.otonashi.cache.ContentSink;
 import io.otonashi.cache.ContentStorage;
 import nl.siegmann.epublib.domain.Book;
 import nl.siegmann.epublib.epub.EpubWriter;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.json.JSONObject;
+import org.shoushitsu.wordpress.dump.DumpOptions;
+import org.shoushitsu.wordpress.dump.Metrics;
 import org.simpleframework.http.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
@@ -25,34 +34,168 @@ class DumpRequestHandler extends AJsonHandler {
 		MISSING_URL.put("status", "missing_param");
 		MISSING_URL.put("params", Arrays.asList(P_URL));
 	}
+	private static final JSONObject OVERLOADED = new JSONObject(Collections.singletonMap("status", "overloaded"));
 
 	private final ConcurrentMap<String, DumpTask> taskByUrl = new ConcurrentHashMap<>();
 
 	private final ContentStorage bookCache;
 
+	private static final long FAILED_TASK_TTL = 60 * 1000;
+
+	private static final long READY_TASK_TTL = 60 * 60 * 1000;
+
 	private final TaskCleanupQueue<String> taskCleanupQueue = new TaskCleanupQueue<String>() {
 		@Override
 		protected void purge(String item) {
-			taskByUrl.remove(item);
-            bookCache.expire(item);
+			DumpTask task = taskByUrl.remove(item);
+			if (task != null) {
+				releaseBook(task);
+			}
+			if (taskIndex != null) {
+				taskIndex.removed(item);
+			}
 		}
 	};
 
+	private final BookStore bookStore;
+
+	private final Metrics.Counter bookCacheHits;
+
+	private final Metrics.Counter bookCacheMisses;
+
+	private final TaskIndex taskIndex;
+
 	private final ScheduledExecutorService executor;
 
-	DumpRequestHandler(ContentStorage bookCache, ScheduledExecutorService executor) {
+	private final DumpScheduler scheduler;
+
+	private final CloseableHttpClient client;
+
+	private final DumpOptions dumpOptions;
+
+	private final boolean streamingEpub;
+
+	DumpRequestHandler(
+			ContentStorage bookCache,
+			ScheduledExecutorService executor,
+			DumpScheduler scheduler,
+			CloseableHttpClient client,
+			DumpOptions dumpOptions,
+			boolean streamingEpub,
+			TaskIndex taskIndex
+	) {
 		super(LoggerFactory.getLogger(DumpRequestHandler.class));
 		this.bookCache = bookCache;
+		this.bookStore = new BookStore(bookCache);
 		this.executor = executor;
+		this.scheduler = scheduler;
+		this.client = client;
+		this.dumpOptions = dumpOptions;
+		this.streamingEpub = streamingEpub;
+		this.taskIndex = taskIndex;
+
+		Metrics metrics = dumpOptions.getMetrics().getRegistry();
+		bookCacheHits = metrics.counter("wpdump_cache_hits_total", "Posts found in a cache.", "cache", "book");
+		bookCacheMisses = metrics.counter(
+				"wpdump_cache_misses_total",
+				"Posts looked up in a cache, but not found or stale.",
+				"cache", "book"
+		);
+		metrics.gauge("wpdump_tasks", "Dump tasks known to the server, finished ones included.", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return taskByUrl.size();
+			}
+		});
+		metrics.gauge("wpdump_cleanup_queue_size", "Tasks waiting to be purged.", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return taskCleanupQueue.size();
+			}
+		});
+
+		if (taskIndex != null) {
+			restoreTasks(taskIndex);
+		}
+
+		executor.scheduleAtFixedRate(
+				taskCleanupQueue,
+				TaskCleanupQueue.TICK_MILLIS,
+				TaskCleanupQueue.TICK_MILLIS,
+				TimeUnit.MILLISECONDS
+		);
+	}
+
+	private void restoreTasks(TaskIndex taskIndex) {
+		long now = System.currentTimeMillis();
+		Set<String> liveKeys = new HashSet<>();
+		for (TaskIndex.Record record : taskIndex.getLiveRecords()) {
+			BookStore.Blob book = null;
+			if (record.ready) {
+				book = bookStore.add(record.contentHash, record.cacheKey, record.bookLength, record.bookWrittenAt);
+				liveKeys.add(book.key);
+			} else if (record.cacheKey != null) {
+				// what's left of a book that failed to be written
+				bookCache.expire(record.cacheKey);
+			}
+			taskByUrl.put(record.url, new DumpTask(record.url, record.bookTitle, record.contentHash, book));
+			taskCleanupQueue.enqueue(record.url, record.expiresAt - now);
+		}
+		for (TaskIndex.Record record : taskIndex.getExpiredRecords()) {
+			if (record.cacheKey != null && !liveKeys.contains(record.cacheKey)) {
+				bookCache.expire(record.cacheKey);
+			}
+			taskIndex.removed(record.url);
+		}
+		log.info("Restored {} tasks", taskIndex.getLiveRecords().size());
+	}
+
+	/**
+	 * Drops the task's reference to its book file, or removes the file if it was never finished.
+	 */
+	private void releaseBook(DumpTask task) {
+		if (task.isBookStored()) {
+			bookStore.release(task.getContentHash());
+		} else if (task.getBookKey() != null) {
+			bookCache.expire(task.getBookKey());
+		}
+	}
 
-		executor.scheduleWithFixedDelay(taskCleanupQueue, 0, 1, TimeUnit.SECONDS);
+	DumpTask getTask(String firstChapterUrl) {
+		return taskByUrl.get(firstChapterUrl);
 	}
 
-    String getBookTitle(String firstChapterUrl) {
+    /**
+     * @return the task that dumped the chain starting at the URL, if its book is ready.
+     */
+    DumpTask getReadyTask(String firstChapterUrl) {
         DumpTask dumpTask = taskByUrl.get(firstChapterUrl);
-        return dumpTask == null ? null : dumpTask.getBookTitle();
+        return dumpTask == null || !dumpTask.isReady() ? null : dumpTask;
     }
 
+	/**
+	 * Makes sure that there is a task for each of the URLs, scheduling the new ones together.
+	 *
+	 * @return {@code false} if the new tasks were rejected because too many tasks are waiting.
+	 */
+	boolean dumpAll(Collection<String> urls) {
+		List<DumpTask> newTasks = new ArrayList<>();
+		for (String url : urls) {
+			DumpTask newTask = new DumpTask(url, client, dumpOptions, streamingEpub, new MyDumpTaskCallback());
+			if (taskByUrl.putIfAbsent(url, newTask) == null) {
+				newTasks.add(newTask);
+			}
+		}
+		log.info("Scheduling {} new dump tasks out of {}", newTasks.size(), urls.size());
+		if (!newTasks.isEmpty() && !scheduler.submitAll(newTasks)) {
+			for (DumpTask task : newTasks) {
+				taskByUrl.remove(task.getUrl(), task);
+			}
+			return false;
+		}
+		return true;
+	}
+
 	@Override
 	protected JSONObject handle(Request req) {
 		String url = req.getParameter(P_URL);
@@ -63,12 +206,15 @@ class DumpRequestHandler extends AJsonHandler {
 		url = url.trim();
 		log.info("Asked to dump URL: {}", url);
 
-		DumpTask newTask = new DumpTask(url, new MyDumpTaskCallback());
+		DumpTask newTask = new DumpTask(url, client, dumpOptions, streamingEpub, new MyDumpTaskCallback());
 		DumpTask registeredTask = taskByUrl.putIfAbsent(url, newTask);
 		if (registeredTask == null) {
 			log.info("Scheduling new dump task");
 			registeredTask = newTask;
-			executor.execute(registeredTask);
+			if (!scheduler.submit(registeredTask)) {
+				taskByUrl.remove(url, registeredTask);
+				return OVERLOADED;
+			}
 		}
 
 		JSONObject statusAsJson = registeredTask.getStatusAsJson();
@@ -81,21 +227,74 @@ class DumpRequestHandler extends AJsonHandler {
 	private class MyDumpTaskCallback implements DumpTask.Callback {
 		@Override
 		public void failed(DumpTask task) {
-			taskCleanupQueue.enqueue(task.getUrl(), 60 * 1000);
+			taskCleanupQueue.enqueue(task.getUrl(), FAILED_TASK_TTL);
+			if (taskIndex != null) {
+				taskIndex.failed(task.getUrl(), task.getBookKey(), System.currentTimeMillis() + FAILED_TASK_TTL);
+			}
 		}
 
 		@Override
 		public boolean done(DumpTask task, Book book, Logger log) {
-            try (ContentSink sink = bookCache.getSink(task.getUrl())) {
-                log.info("Writing book file");
-                new EpubWriter().write(book, sink.getOutputStream());
-                return true;
-            } catch (IOException e) {
-                log.error("Error while saving the book", e);
-                return false;
-            } finally {
-                taskCleanupQueue.enqueue(task.getUrl(), 60 * 60 * 1000);
+            BookStore.Blob stored = bookStore.acquire(task.getContentHash());
+            if (stored != null) {
+                log.info("The book is unchanged, reusing book file {}", stored.key);
+                bookCacheHits.increment();
+            } else {
+                bookCacheMisses.increment();
+                String key = bookStore.newKey();
+                task.setBookKey(key);
+                long length;
+                try (CountingContentSink sink = new CountingContentSink(bookCache.getSink(key))) {
+                    log.info("Writing book file");
+                    long startTime = System.nanoTime();
+                    if (dumpOptions.getEpubWriter() != null) {
+                        dumpOptions.getEpubWriter().write(book, sink.getOutputStream());
+                    } else {
+                        new EpubWriter().write(book, sink.getOutputStream());
+                    }
+                    dumpOptions.getMetrics().epubWriteTime.observeSince(startTime);
+                    length = sink.getCount();
+                } catch (IOException e) {
+                    log.error("Error while saving the book", e);
+                    // the task reports the failure itself, but leaves the cleanup to the callback
+                    failed(task);
+                    return false;
+                }
+                stored = bookStore.add(task.getContentHash(), key, length);
             }
+            task.bookStored(stored);
+            taskCleanupQueue.enqueue(task.getUrl(), READY_TASK_TTL);
+            recordReady(task);
+            return true;
+		}
+
+		@Override
+		public ContentSink openBook(DumpTask task) throws IOException {
+			String key = bookStore.newKey();
+			task.setBookKey(key);
+			return bookCache.getSink(key);
+		}
+
+		@Override
+		public void written(DumpTask task, long length) {
+			// the content is only known once the book is written, so a duplicate can only be dropped afterwards
+			task.bookStored(bookStore.add(task.getContentHash(), task.getBookKey(), length));
+			taskCleanupQueue.enqueue(task.getUrl(), READY_TASK_TTL);
+			recordReady(task);
+		}
+
+		private void recordReady(DumpTask task) {
+			if (taskIndex != null) {
+				taskIndex.ready(
+						task.getUrl(),
+						task.getBookTitle(),
+						task.getContentHash(),
+						task.getBookKey(),
+						task.getBookLength(),
+						task.getBookWrittenAt(),
+						System.currentTimeMillis() + READY_TASK_TTL
+				);
+			}
 		}
 	}
 
@@ -0,0 +1,276 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.shoushitsu.wordpress.dump.SiteCircuitBreaker;
+import org.shoushitsu.wordpress.dump.WordpressUrlParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs dump tasks with a limit on how many run at once, in total and per site.
+ * A task counts as running until it reports that it's finished, even if it's an asynchronous
+ * one that doesn't occupy a worker thread in the meantime.
+ * <p>
+ * Tasks that can't start right away wait in per-site queues, which are served round robin,
+ * so a site with many queued books doesn't hold up the others. The total number of waiting
+ * tasks is bounded: when the queues are full, new tasks are rejected right away.
+ * <p>
+ * A site whose circuit breaker is open is skipped until the breaker lets requests through again,
+ * so that its queued tasks wait instead of failing one after another.
+ */
+class DumpScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(DumpScheduler.class);
+
+	private static final String UNKNOWN_SITE = "";
+
+	private final ExecutorService workers;
+
+	private final int maxRunning;
+
+	private final int maxQueued;
+
+	private final int maxRunningPerSite;
+
+	private final SiteCircuitBreaker circuitBreaker;
+
+	private final ScheduledExecutorService timer;
+
+	private final Runnable delayedDispatch = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (DumpScheduler.this) {
+				scheduledDispatch = null;
+				dispatch();
+			}
+		}
+	};
+
+	/**
+	 * A run of {@link #delayedDispatch} that is due, to serve sites that are paused now.
+	 */
+	private ScheduledFuture<?> scheduledDispatch;
+
+	private long scheduledDispatchNanos;
+
+	private final Map<String, Deque<DumpTask>> queueBySite = new HashMap<>();
+
+	/**
+	 * Sites with waiting tasks, in the order they will be served.
+	 */
+	private final Deque<String> siteRotation = new ArrayDeque<>();
+
+	private final Map<String, Integer> runningBySite = new HashMap<>();
+
+	private int running;
+
+	private int queued;
+
+	/**
+	 * @param circuitBreaker the breaker shared by the tasks, or {@code null} if there is none.
+	 * @param timer          wakes the scheduler up when a paused site may be served again.
+	 */
+	DumpScheduler(
+			ExecutorService workers,
+			int maxRunning,
+			int maxQueued,
+			int maxRunningPerSite,
+			SiteCircuitBreaker circuitBreaker,
+			ScheduledExecutorService timer
+	) {
+		this.workers = workers;
+		this.maxRunning = maxRunning;
+		this.maxQueued = maxQueued;
+		this.maxRunningPerSite = maxRunningPerSite;
+		this.circuitBreaker = circuitBreaker;
+		this.timer = timer;
+	}
+
+	/**
+	 * @return {@code false} if the task was rejected because too many tasks are waiting.
+	 */
+	synchronized boolean submit(DumpTask task) {
+		if (queued >= maxQueued) {
+			log.warn("Rejecting task, {} tasks are already waiting", queued);
+			return false;
+		}
+		enqueue(task);
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * Queues the tasks together: they either all fit in the queues or are all rejected, and they are
+	 * only dispatched once all of them are queued, so the batch is spread across sites from the start.
+	 *
+	 * @return {@code false} if the tasks were rejected because too many tasks would be waiting.
+	 */
+	synchronized boolean submitAll(Collection<DumpTask> tasks) {
+		if (queued + tasks.size() > maxQueued) {
+			log.warn("Rejecting {} tasks, {} tasks are already waiting", tasks.size(), queued);
+			return false;
+		}
+		for (DumpTask task : tasks) {
+			enqueue(task);
+		}
+		dispatch();
+		return true;
+	}
+
+	private void enqueue(DumpTask task) {
+		String site = getSite(task);
+		Deque<DumpTask> queue = queueBySite.get(site);
+		if (queue == null) {
+			queue = new ArrayDeque<>();
+			queueBySite.put(site, queue);
+			siteRotation.addLast(site);
+		}
+		queue.addLast(task);
+		++queued;
+		task.setScheduler(this);
+	}
+
+	/**
+	 * Approximates the position of the task in the overall queue, assuming that sites
+	 * keep being served round robin.
+	 *
+	 * @return the position, starting from 1, or 0 if the task isn't waiting.
+	 */
+	synchronized int getQueuePosition(DumpTask task) {
+		Deque<DumpTask> queue = queueBySite.get(getSite(task));
+		if (queue == null) {
+			return 0;
+		}
+		int round = 0;
+		for (Iterator<DumpTask> it = queue.iterator(); it.hasNext(); ++round) {
+			if (it.next() == task) {
+				break;
+			}
+		}
+		if (round == queue.size()) {
+			return 0;
+		}
+		int position = 1;
+		boolean beforeTask = true;
+		for (String site : siteRotation) {
+			Deque<DumpTask> siteQueue = queueBySite.get(site);
+			if (siteQueue == queue) {
+				beforeTask = false;
+			}
+			position += Math.min(siteQueue.size(), round);
+			if (beforeTask && siteQueue.size() > round) {
+				++position;
+			}
+		}
+		return position;
+	}
+
+	synchronized int getRunningCount() {
+		return running;
+	}
+
+	synchronized int getQueuedCount() {
+		return queued;
+	}
+
+	void shutdown() {
+		workers.shutdownNow();
+	}
+
+	private void dispatch() {
+		int skipped = 0;
+		while (running < maxRunning && skipped < siteRotation.size()) {
+			String site = siteRotation.pollFirst();
+			Integer runningForSite = runningBySite.get(site);
+			if (runningForSite != null && runningForSite >= maxRunningPerSite) {
+				siteRotation.addLast(site);
+				++skipped;
+				continue;
+			}
+			long pausedMillis = circuitBreaker == null ? 0 : circuitBreaker.getRemainingOpenMillis(site);
+			if (pausedMillis > 0) {
+				siteRotation.addLast(site);
+				++skipped;
+				scheduleDispatch(pausedMillis);
+				continue;
+			}
+			skipped = 0;
+			Deque<DumpTask> queue = queueBySite.get(site);
+			DumpTask task = queue.pollFirst();
+			if (queue.isEmpty()) {
+				queueBySite.remove(site);
+			} else {
+				siteRotation.addLast(site);
+			}
+			--queued;
+			++running;
+			runningBySite.put(site, runningForSite == null ? 1 : runningForSite + 1);
+			workers.execute(new Worker(site, task));
+		}
+	}
+
+	/**
+	 * Makes sure that the queues are looked at again after the delay, even if no task finishes by then.
+	 */
+	private void scheduleDispatch(long delayMillis) {
+		long dispatchNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		if (scheduledDispatch != null) {
+			if (scheduledDispatchNanos - dispatchNanos <= 0) {
+				return;
+			}
+			scheduledDispatch.cancel(false);
+		}
+		scheduledDispatchNanos = dispatchNanos;
+		scheduledDispatch = timer.schedule(delayedDispatch, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void finished(String site) {
+		--running;
+		int runningForSite = runningBySite.get(site) - 1;
+		if (runningForSite == 0) {
+			runningBySite.remove(site);
+		} else {
+			runningBySite.put(site, runningForSite);
+		}
+		dispatch();
+	}
+
+	private static String getSite(DumpTask task) {
+		WordpressUrlParser.SiteAndSlug siteAndSlug = WordpressUrlParser.parsePostUrl(task.getUrl());
+		return siteAndSlug == null ? UNKNOWN_SITE : siteAndSlug.site;
+	}
+
+	private final class Worker implements Runnable {
+
+		private final String site;
+
+		private final DumpTask task;
+
+		Worker(String site, DumpTask task) {
+			this.site = site;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.start(workers, new Runnable() {
+				@Override
+				public void run() {
+					finished(site);
+				}
+			});
+		}
+
+	}
+
+}
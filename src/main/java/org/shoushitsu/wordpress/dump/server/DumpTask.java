@@ -1,16 +1,25 @@
 package org.shoushitsu.wordpress.dump.server;
 
+import io.otonashi.cache.ContentSink;
 import nl.siegmann.epublib.domain.Book;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.json.JSONObject;
+import org.shoushitsu.wordpress.dump.AsyncFetchEngine;
+import org.shoushitsu.wordpress.dump.ChapterSpillFile;
+import org.shoushitsu.wordpress.dump.DumpOptions;
 import org.shoushitsu.wordpress.dump.EpubDumperCallback;
 import org.shoushitsu.wordpress.dump.PostChainDumper;
+import org.shoushitsu.wordpress.dump.StreamingEpubWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 class DumpTask implements Runnable {
@@ -21,6 +30,19 @@ class DumpTask implements Runnable {
 
 		boolean done(DumpTask task, Book book, Logger log);
 
+		ContentSink openBook(DumpTask task) throws IOException;
+
+		void written(DumpTask task, long length);
+
+	}
+
+	/**
+	 * Gets told about every change of a task's progress, on the thread that made the change.
+	 */
+	static interface ProgressListener {
+
+		void progressChanged(DumpTask task);
+
 	}
 
 	private static final AtomicLong INDEX_SOURCE = new AtomicLong();
@@ -36,17 +58,61 @@ class DumpTask implements Runnable {
 
 	private final String url;
 
+	private final CloseableHttpClient client;
+
+	private final DumpOptions options;
+
+	private final boolean streamingEpub;
+
 	private final Callback callback;
 
     private String bookTitle;
 
 	private volatile int progress = PENDING;
 
-	DumpTask(String url, Callback callback) {
+	private volatile String chapterTitle;
+
+	private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+
+	private volatile DumpScheduler scheduler;
+
+	private volatile String contentHash;
+
+	private volatile String bookKey;
+
+	private volatile long bookLength = -1;
+
+	private volatile long bookWrittenAt;
+
+	private CountingContentSink bookSink;
+
+	private StreamingEpubWriter bookWriter;
+
+	private ChapterSpillFile chapterSpill;
+
+	DumpTask(String url, CloseableHttpClient client, DumpOptions options, boolean streamingEpub, Callback callback) {
 		this.url = url;
+		this.client = client;
+		this.options = options;
+		this.streamingEpub = streamingEpub;
 		this.callback = callback;
 	}
 
+	/**
+	 * Makes a task that finished before the server was restarted. It must not be run.
+	 *
+	 * @param book the book file, or {@code null} if the task failed.
+	 */
+	DumpTask(String url, String bookTitle, String contentHash, BookStore.Blob book) {
+		this(url, null, null, false, null);
+		this.bookTitle = bookTitle;
+		this.contentHash = contentHash;
+		if (book != null) {
+			bookStored(book);
+		}
+		this.progress = book != null ? READY : FAILED;
+	}
+
 	String getUrl() {
 		return url;
 	}
@@ -55,42 +121,341 @@ class DumpTask implements Runnable {
         return bookTitle;
     }
 
+	/**
+	 * @return the hash of the book's content, once the chain has been dumped.
+	 */
+	String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return the cache key of the book file, or {@code null} if there's no file yet.
+	 */
+	String getBookKey() {
+		return bookKey;
+	}
+
+	void setBookKey(String bookKey) {
+		this.bookKey = bookKey;
+	}
+
+	/**
+	 * @return whether the book file has been written and registered in the {@link BookStore}.
+	 */
+	boolean isBookStored() {
+		return bookLength >= 0;
+	}
+
+	/**
+	 * @return the size of the book file, or -1 if it hasn't been stored.
+	 */
+	long getBookLength() {
+		return bookLength;
+	}
+
+	/**
+	 * @return when the book file was written, in wall clock milliseconds.
+	 */
+	long getBookWrittenAt() {
+		return bookWrittenAt;
+	}
+
+	void bookStored(BookStore.Blob book) {
+		bookKey = book.key;
+		bookWrittenAt = book.writtenAt;
+		bookLength = book.length;
+	}
+
+	void setScheduler(DumpScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	boolean isReady() {
+		return progress == READY;
+	}
+
+	boolean isFinished() {
+		int progress = this.progress;
+		return progress == READY || progress == FAILED;
+	}
+
+	/**
+	 * @return an opaque number that changes whenever the status of the task does.
+	 */
+	int getProgress() {
+		return progress;
+	}
+
+	void addProgressListener(ProgressListener listener) {
+		progressListeners.add(listener);
+	}
+
+	void removeProgressListener(ProgressListener listener) {
+		progressListeners.remove(listener);
+	}
+
+	private void setProgress(int progress) {
+		this.progress = progress;
+		for (ProgressListener listener : progressListeners) {
+			listener.progressChanged(this);
+		}
+	}
+
     @Override
 	public void run() {
-		Logger log = LoggerFactory.getLogger(DumpTask.class.getName() + '.' + INDEX_SOURCE.incrementAndGet());
+		Logger log = newLogger();
 		log.info("Starting processing with URL {}", url);
 
-		progress = 0;
-		EpubDumperCallback dumperCallback = new MyEpubDumperCallback(log);
-		try (CloseableHttpClient client = HttpClients.createDefault()) {
-			PostChainDumper.dump(client, url, dumperCallback);
-		} catch (IOException e) {
-			log.error("Error while closing HTTP client");
-		} catch (InterruptedException e) {
-			log.warn(e.getMessage());
-			progress = FAILED;
-		}
+		setProgress(0);
+		boolean saved = streamingEpub ? dumpStreaming(log) : dumpInMemory(log);
 		if (progress == FAILED) {
 			return;
 		}
+		reportSaved(saved, log);
+	}
 
-		log.info("Reporting success");
-		boolean saved = callback.done(this, dumperCallback.getBook(), log);
+	/**
+	 * Runs the task on the calling thread or, if the dump options have an asynchronous
+	 * fetch engine, walks the chain in the background without holding the thread.
+	 *
+	 * @param finisher     where the book is finished after walking in the background, since writing it
+	 *                     would hold up the engine's threads, which other walks need.
+	 * @param whenFinished run once the task is over, either way.
+	 */
+	void start(final Executor finisher, final Runnable whenFinished) {
+		final AsyncFetchEngine engine = options.getAsyncFetchEngine();
+		if (engine == null) {
+			try {
+				run();
+			} finally {
+				whenFinished.run();
+			}
+			return;
+		}
+
+		final Logger log = newLogger();
+		log.info("Starting asynchronous processing with URL {}", url);
 
+		setProgress(0);
+		if (streamingEpub ? !openBook(log) : !openChapterSpill(log)) {
+			whenFinished.run();
+			return;
+		}
+		final EpubDumperCallback dumperCallback = streamingEpub
+				? new MyEpubDumperCallback(log, bookWriter)
+				: new MyEpubDumperCallback(log, chapterSpill);
+		PostChainDumper.dumpAsync(engine, url, dumperCallback, options, new FutureCallback<Void>() {
+			@Override
+			public void completed(Void result) {
+				try {
+					finisher.execute(new Runnable() {
+						@Override
+						public void run() {
+							finish(dumperCallback, log, whenFinished);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					failed(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				try {
+					log.error("Error while dumping", e);
+					setProgress(FAILED);
+					callback.failed(DumpTask.this);
+					abandonBook(log);
+				} finally {
+					closeChapterSpill(log);
+					whenFinished.run();
+				}
+			}
+
+			@Override
+			public void cancelled() {
+				failed(new Exception("Dump cancelled"));
+			}
+		});
+	}
+
+	private void finish(EpubDumperCallback dumperCallback, Logger log, Runnable whenFinished) {
+		try {
+			if (progress == FAILED) {
+				abandonBook(log);
+				return;
+			}
+			boolean saved;
+			contentHash = dumperCallback.getContentHash();
+			if (streamingEpub) {
+				saved = finishBook(log);
+			} else {
+				log.info("Reporting success");
+				saved = callback.done(this, dumperCallback.getBook(), log);
+			}
+			reportSaved(saved, log);
+		} finally {
+			closeChapterSpill(log);
+			whenFinished.run();
+		}
+	}
+
+	private Logger newLogger() {
+		return LoggerFactory.getLogger(DumpTask.class.getName() + '.' + INDEX_SOURCE.incrementAndGet());
+	}
+
+	private void reportSaved(boolean saved, Logger log) {
 		if (saved) {
 			log.info("Done!");
-			progress = READY;
+			setProgress(READY);
 		} else {
 			log.warn("Failed to save the book");
-			progress = FAILED;
+			setProgress(FAILED);
+		}
+	}
+
+	private boolean dumpInMemory(Logger log) {
+		if (!openChapterSpill(log)) {
+			return false;
+		}
+		try {
+			EpubDumperCallback dumperCallback = new MyEpubDumperCallback(log, chapterSpill);
+			if (!dump(dumperCallback, log)) {
+				return false;
+			}
+			contentHash = dumperCallback.getContentHash();
+
+			log.info("Reporting success");
+			return callback.done(this, dumperCallback.getBook(), log);
+		} finally {
+			closeChapterSpill(log);
+		}
+	}
+
+	/**
+	 * Creates the spill file of the book, if the options ask for one.
+	 */
+	private boolean openChapterSpill(Logger log) {
+		if (options.getChapterSpillDirectory() == null) {
+			return true;
+		}
+		try {
+			chapterSpill = new ChapterSpillFile(options.getChapterSpillDirectory());
+			return true;
+		} catch (IOException e) {
+			log.error("Error while creating the chapter spill file", e);
+			setProgress(FAILED);
+			callback.failed(this);
+			return false;
+		}
+	}
+
+	private void closeChapterSpill(Logger log) {
+		if (chapterSpill == null) {
+			return;
+		}
+		try {
+			chapterSpill.close();
+		} catch (IOException e) {
+			log.warn("Error while closing the chapter spill file", e);
+		} finally {
+			chapterSpill = null;
+		}
+	}
+
+	private boolean dumpStreaming(Logger log) {
+		if (!openBook(log)) {
+			return false;
+		}
+		EpubDumperCallback dumperCallback = new MyEpubDumperCallback(log, bookWriter);
+		if (!dump(dumperCallback, log)) {
+			abandonBook(log);
+			return false;
+		}
+		contentHash = dumperCallback.getContentHash();
+		return finishBook(log);
+	}
+
+	private boolean openBook(Logger log) {
+		try {
+			bookSink = new CountingContentSink(callback.openBook(this));
+			bookWriter = new StreamingEpubWriter(bookSink.getOutputStream());
+			return true;
+		} catch (IOException e) {
+			log.error("Error while opening the book file", e);
+			abandonBook(log);
+			setProgress(FAILED);
+			callback.failed(this);
+			return false;
+		}
+	}
+
+	private boolean finishBook(Logger log) {
+		long length;
+		try (CountingContentSink sink = bookSink) {
+			log.info("Finishing book file");
+			long startTime = System.nanoTime();
+			bookWriter.close();
+			options.getMetrics().epubFinishTime.observeSince(startTime);
+			length = sink.getCount();
+		} catch (IOException e) {
+			log.error("Error while writing the book", e);
+			callback.failed(this);
+			return false;
+		} finally {
+			bookWriter = null;
+			bookSink = null;
+		}
+		callback.written(this, length);
+		return true;
+	}
+
+	/**
+	 * Releases the cache entry of a book that won't be finished;
+	 * removing the entry is up to the cleanup that follows a failure.
+	 */
+	private void abandonBook(Logger log) {
+		if (bookSink == null) {
+			return;
+		}
+		try {
+			bookSink.close();
+		} catch (IOException e) {
+			log.warn("Error while closing an abandoned book file", e);
+		} finally {
+			bookSink = null;
+			bookWriter = null;
 		}
 	}
 
+	private boolean dump(EpubDumperCallback dumperCallback, Logger log) {
+		try {
+			PostChainDumper.dump(client, url, dumperCallback, options);
+		} catch (InterruptedException e) {
+			log.warn(e.getMessage());
+			setProgress(FAILED);
+		} catch (RuntimeException e) {
+			// e.g. a post the parser can't make sense of; the caller abandons the book
+			log.error("Error while dumping", e);
+			setProgress(FAILED);
+			callback.failed(this);
+		}
+		return progress != FAILED;
+	}
+
 	JSONObject getStatusAsJson() {
 		int progress = this.progress;
 		switch (progress) {
 			case PENDING:
-				return JSON_PENDING;
+				DumpScheduler scheduler = this.scheduler;
+				int position = scheduler == null ? 0 : scheduler.getQueuePosition(this);
+				if (position == 0) {
+					return JSON_PENDING;
+				}
+				JSONObject queuedJson = new JSONObject();
+				queuedJson.put(STATUS, "queued");
+				queuedJson.put("position", position);
+				return queuedJson;
 			case READY:
 				return JSON_READY;
 			case FAILED:
@@ -99,18 +464,34 @@ class DumpTask implements Runnable {
 				JSONObject json = new JSONObject();
 				json.put(STATUS, "working");
 				json.put("progress", progress);
+				String chapterTitle = this.chapterTitle;
+				if (chapterTitle != null) {
+					json.put("chapter", chapterTitle);
+				}
 				return json;
 		}
 	}
 
 	private class MyEpubDumperCallback extends EpubDumperCallback {
-		MyEpubDumperCallback(Logger log) {
-			super(log);
+		MyEpubDumperCallback(Logger log, StreamingEpubWriter writer) {
+			super(log, writer);
+		}
+
+		MyEpubDumperCallback(Logger log, ChapterSpillFile spillFile) {
+			super(log, spillFile);
+		}
+
+		/**
+		 * The book store finds duplicate books by their hash.
+		 */
+		@Override
+		protected boolean hashesContent() {
+			return true;
 		}
 
 		@Override
 		public void fetchException(IOException e) {
-			DumpTask.this.progress = FAILED;
+			setProgress(FAILED);
 			callback.failed(DumpTask.this);
 		}
 
@@ -126,19 +507,20 @@ class DumpTask implements Runnable {
 
         @Override
 		protected void onEndChapter(int index) {
-			DumpTask.this.progress = index;
+			chapterTitle = getChapterTitle();
+			setProgress(index);
 		}
 
 		@Override
 		public boolean impossible() {
-			DumpTask.this.progress = FAILED;
+			setProgress(FAILED);
 			callback.failed(DumpTask.this);
 			return false;
 		}
 
 		@Override
 		public boolean badUrl(int index, String url) {
-			DumpTask.this.progress = FAILED;
+			setProgress(FAILED);
 			callback.failed(DumpTask.this);
 			return false;
 		}
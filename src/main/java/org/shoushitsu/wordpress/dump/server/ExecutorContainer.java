@@ -0,0 +1,50 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands each request over to an executor, freeing the server's own threads right away.
+ * The wrapped handler is responsible for closing the response, as usual.
+ */
+class ExecutorContainer implements Container {
+
+	private static final Logger log = LoggerFactory.getLogger(ExecutorContainer.class);
+
+	private final Container handler;
+
+	private final Executor executor;
+
+	ExecutorContainer(Container handler, Executor executor) {
+		this.handler = handler;
+		this.executor = executor;
+	}
+
+	@Override
+	public void handle(final Request req, final Response resp) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					handler.handle(req, resp);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.error("Couldn't hand over the request", e);
+			resp.setCode(503);
+			try {
+				resp.close();
+			} catch (IOException closeException) {
+				log.error("Error while closing the 503 response");
+			}
+		}
+	}
+
+}
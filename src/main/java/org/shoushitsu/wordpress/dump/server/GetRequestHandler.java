@@ -2,6 +2,7 @@ package org.shoushitsu.wordpress.dump.server;
 
 import io.otonashi.cache.ContentSource;
 import io.otonashi.cache.ContentStorage;
+import org.shoushitsu.wordpress.dump.Metrics;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 import org.simpleframework.http.core.Container;
@@ -14,15 +15,22 @@ import java.nio.charset.StandardCharsets;
 
 class GetRequestHandler implements Container {
 
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Logger log = LoggerFactory.getLogger(GetRequestHandler.class);
 
     private final DumpRequestHandler dumpHandler;
 
     private final ContentStorage bookCache;
 
-    GetRequestHandler(DumpRequestHandler dumpHandler, ContentStorage bookCache) {
+    private final Metrics.Counter servedBytes;
+
+    GetRequestHandler(DumpRequestHandler dumpHandler, ContentStorage bookCache, Metrics metrics) {
         this.dumpHandler = dumpHandler;
         this.bookCache = bookCache;
+        this.servedBytes = metrics.counter("wpdump_served_bytes_total", "Bytes of books sent to clients.");
     }
 
     @Override
@@ -34,22 +42,59 @@ class GetRequestHandler implements Container {
                 resp.close();
                 return;
             }
-            try (ContentSource source = bookCache.getSource(url)) {
-                String bookTitle = dumpHandler.getBookTitle(url);
-                if (source == null || bookTitle == null) {
+            DumpTask task = dumpHandler.getReadyTask(url);
+            if (task == null || task.getBookTitle() == null) {
+                resp.setCode(404);
+                resp.close();
+                return;
+            }
+            try (ContentSource source = bookCache.getSource(task.getBookKey())) {
+                if (source == null) {
                     resp.setCode(404);
                     resp.close();
                     return;
                 }
-                resp.setCode(200);
+                long length = task.getBookLength();
+                long start = 0;
+                long count = length;
+                if (length >= 0) {
+                    long writtenAt = task.getBookWrittenAt();
+                    String etag = "\"" + Long.toHexString(writtenAt) + '-' + Long.toHexString(length) + '"';
+                    resp.setValue("ETag", etag);
+                    resp.setDate("Last-Modified", writtenAt);
+                    resp.setValue("Accept-Ranges", "bytes");
+                    if (isNotModified(req, etag, writtenAt)) {
+                        resp.setCode(304);
+                        resp.close();
+                        return;
+                    }
+                    long[] range = getRange(req, etag, length);
+                    if (range == UNSATISFIABLE_RANGE) {
+                        resp.setCode(416);
+                        resp.setValue("Content-Range", "bytes */" + length);
+                        resp.close();
+                        return;
+                    }
+                    if (range != null) {
+                        start = range[0];
+                        count = range[1] - range[0] + 1;
+                        resp.setCode(206);
+                        resp.setValue("Content-Range", "bytes " + range[0] + '-' + range[1] + '/' + length);
+                    } else {
+                        resp.setCode(200);
+                    }
+                    resp.setContentLength(count);
+                } else {
+                    resp.setCode(200);
+                }
                 resp.setContentType("application/epub+zip");
-                resp.setValue("Content-Disposition", "attachment; filename*=UTF-8''" + encode(bookTitle) + ".epub");
+                resp.setValue("Content-Disposition", "attachment; filename*=UTF-8''" + encode(task.getBookTitle()) + ".epub");
+                if ("HEAD".equals(req.getMethod())) {
+                    resp.close();
+                    return;
+                }
                 try (OutputStream out = resp.getOutputStream()) {
-                    byte[] buf = new byte[8192];
-                    int len;
-                    while ((len = source.read(buf)) != -1) {
-                        out.write(buf, 0, len);
-                    }
+                    servedBytes.add(copy(source, out, start, count));
                 }
             }
         } catch (IOException e) {
@@ -57,6 +102,100 @@ class GetRequestHandler implements Container {
         }
     }
 
+    private static boolean isNotModified(Request req, String etag, long writtenAt) {
+        String ifNoneMatch = req.getValue("If-None-Match");
+        if (ifNoneMatch != null) {
+            // a weak comparison is what the spec asks for here
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = req.getDate("If-Modified-Since");
+        // HTTP dates have a resolution of a second
+        return ifModifiedSince >= 0 && writtenAt / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Only single ranges are supported; for anything else the whole book is sent, which the spec allows.
+     *
+     * @return the first and last byte of the requested range, {@code null} if the whole book should be sent,
+     * or {@link #UNSATISFIABLE_RANGE}.
+     */
+    private static long[] getRange(Request req, String etag, long length) {
+        String range = req.getValue("Range");
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String ifRange = req.getValue("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            return null;
+        }
+        range = range.substring("bytes=".length()).trim();
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                long suffixLength = Long.parseLong(range.substring(1));
+                if (suffixLength == 0) {
+                    return UNSATISFIABLE_RANGE;
+                }
+                first = Math.max(length - suffixLength, 0);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(range.substring(0, dash));
+                last = dash == range.length() - 1 ? length - 1 : Long.parseLong(range.substring(dash + 1));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first < 0 || last < first) {
+            return null;
+        }
+        if (first >= length) {
+            return UNSATISFIABLE_RANGE;
+        }
+        return new long[] {first, Math.min(last, length - 1)};
+    }
+
+    /**
+     * Cache entries can only be read from the start, so the bytes before the range are read and dropped.
+     *
+     * @param count how many bytes to copy, or -1 to copy everything.
+     * @return how many bytes were copied.
+     */
+    private static long copy(ContentSource source, OutputStream out, long start, long count) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long skip = start;
+        long left = count < 0 ? Long.MAX_VALUE : count;
+        long copied = 0;
+        int len;
+        while (left > 0 && (len = source.read(buf)) != -1) {
+            int off = 0;
+            if (skip > 0) {
+                off = (int) Math.min(skip, len);
+                skip -= off;
+            }
+            int toWrite = (int) Math.min(len - off, left);
+            if (toWrite > 0) {
+                out.write(buf, off, toWrite);
+                left -= toWrite;
+                copied += toWrite;
+            }
+        }
+        return copied;
+    }
+
     private static String encode(String bookTitle) {
         StringBuilder sb = new StringBuilder();
         byte[] bytes = bookTitle.getBytes(StandardCharsets.UTF_8);
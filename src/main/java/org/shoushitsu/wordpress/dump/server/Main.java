@@ -3,6 +3,12 @@ package org.shoushitsu.wordpress.dump.server;
 import io.otonashi.cache.StorageCallback;
 import io.otonashi.cache.file.BadStorageRootException;
 import io.otonashi.cache.file.FileStorage;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.shoushitsu.wordpress.dump.AsyncFetchEngine;
+import org.shoushitsu.wordpress.dump.DumpOptions;
+import org.shoushitsu.wordpress.dump.Metrics;
+import org.simpleframework.http.core.Container;
 import org.simpleframework.http.core.ContainerServer;
 import org.simpleframework.transport.connect.Connection;
 import org.simpleframework.transport.connect.SocketConnection;
@@ -14,13 +20,24 @@ import java.net.InetSocketAddress;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
 	private static final Logger log = LoggerFactory.getLogger(Main.class);
 
+	private static final String THREADS_PLATFORM = "platform";
+	private static final String THREADS_VIRTUAL = "virtual";
+	private static final String THREADS_VIRTUAL_ALL = "virtual-all";
+
+	private static final String FETCH_ENGINE_BLOCKING = "blocking";
+	private static final String FETCH_ENGINE_ASYNC = "async";
+
 	public static void main(String[] args) {
 		byte exitCode = main0(args);
 		if (exitCode != 0) {
@@ -64,18 +81,135 @@ public class Main {
             return 1;
         }
 
-		ScheduledExecutorService executor = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+		DumpOptions dumpOptions;
+		try {
+			dumpOptions = DumpOptions.fromSystemProperties();
+		} catch (IOException e) {
+			log.error("Failed to initialize dump options", e);
+			return 1;
+		}
+
+		TaskIndex taskIndex = null;
+		String taskIndexPath = System.getProperty("wpdump.taskIndex");
+		if (taskIndexPath != null) {
+			try {
+				taskIndex = new TaskIndex(Paths.get(taskIndexPath));
+			} catch (InvalidPathException | IOException e) {
+				log.error("Failed to load the task index", e);
+				return 1;
+			}
+		}
+
+		// the timer only hands work over, so that it is on time; anything that touches disks or sockets goes to housekeeping
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor();
+
+		String threadMode = System.getProperty("wpdump.threads", THREADS_PLATFORM);
+		boolean virtualThreads = threadMode.equals(THREADS_VIRTUAL) || threadMode.equals(THREADS_VIRTUAL_ALL);
+		if (!virtualThreads && !threadMode.equals(THREADS_PLATFORM)) {
+			System.err.println("Unknown thread mode: " + threadMode);
+			return 1;
+		}
+		if (virtualThreads && !VirtualThreads.isAvailable()) {
+			log.error("Virtual threads are not supported by this JVM");
+			return 1;
+		}
+
+		String fetchEngine = System.getProperty("wpdump.fetchEngine", FETCH_ENGINE_BLOCKING);
+		boolean asyncFetch = fetchEngine.equals(FETCH_ENGINE_ASYNC);
+		if (!asyncFetch && !fetchEngine.equals(FETCH_ENGINE_BLOCKING)) {
+			System.err.println("Unknown fetch engine: " + fetchEngine);
+			return 1;
+		}
+
+		// with virtual threads, only the scheduler limits how many tasks run at once
+		int maxRunningTasks = Integer.getInteger("wpdump.scheduler.maxRunning", virtualThreads ? 1000 : 16);
+		ExecutorService taskWorkers;
+		if (virtualThreads) {
+			log.info("Running dump tasks on virtual threads");
+			taskWorkers = VirtualThreads.newPerTaskExecutor();
+			dumpOptions.setThreadFactory(VirtualThreads.newThreadFactory());
+		} else {
+			taskWorkers = Executors.newFixedThreadPool(maxRunningTasks);
+		}
+		final DumpScheduler scheduler = new DumpScheduler(
+				taskWorkers,
+				maxRunningTasks,
+				Integer.getInteger("wpdump.scheduler.maxQueued", 1000),
+				Integer.getInteger("wpdump.scheduler.maxRunningPerSite", 4),
+				dumpOptions.getCircuitBreaker(),
+				executor
+		);
+
+		Metrics metrics = dumpOptions.getMetrics().getRegistry();
+		metrics.gauge("wpdump_tasks_running", "Dump tasks that are running.", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return scheduler.getRunningCount();
+			}
+		});
+		metrics.gauge("wpdump_tasks_queued", "Dump tasks waiting for their turn to run.", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return scheduler.getQueuedCount();
+			}
+		});
+
+		SharedHttpClient httpClient = SharedHttpClient.fromSystemProperties();
+		httpClient.scheduleEviction(housekeeping);
+
+		CloseableHttpAsyncClient asyncHttpClient = null;
+		ExecutorService asyncWorkers = null;
+		if (asyncFetch) {
+			log.info("Fetching posts asynchronously");
+			asyncHttpClient = HttpAsyncClients.custom()
+					.setMaxConnTotal(Integer.getInteger("wpdump.http.maxTotal", 64))
+					.setMaxConnPerRoute(Integer.getInteger("wpdump.http.maxPerRoute", 32))
+					.setProxy(SharedHttpClient.proxyFromSystemProperties())
+					.build();
+			asyncHttpClient.start();
+			asyncWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			dumpOptions.setAsyncFetchEngine(new AsyncFetchEngine(asyncHttpClient, asyncWorkers, executor));
+		}
 
 		RequestDispatchingHandler dispatchingHandler = new RequestDispatchingHandler();
 		StopRequestHandler stopHandler = new StopRequestHandler();
-        DumpRequestHandler dumpHandler = new DumpRequestHandler(bookCache, executor);
+        DumpRequestHandler dumpHandler = new DumpRequestHandler(
+                bookCache,
+                housekeeping,
+                scheduler,
+                httpClient.getClient(),
+                dumpOptions,
+                Boolean.getBoolean("wpdump.streamingEpub"),
+                taskIndex
+        );
         dispatchingHandler.setHandler("/stop", stopHandler);
         dispatchingHandler.setHandler("/dump", dumpHandler);
-        dispatchingHandler.setHandler("/get", new GetRequestHandler(dumpHandler, bookCache));
+        dispatchingHandler.setHandler("/batch", new BatchRequestHandler(dumpHandler, executor));
+        dispatchingHandler.setHandler("/get", new GetRequestHandler(dumpHandler, bookCache, metrics));
+        dispatchingHandler.setHandler("/metrics", new MetricsRequestHandler(metrics));
+        int progressWriterCount = Integer.getInteger("wpdump.progress.writers", 8);
+        ThreadPoolExecutor progressWriters = new ThreadPoolExecutor(
+                progressWriterCount,
+                progressWriterCount,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Integer.getInteger("wpdump.progress.maxQueued", 1000))
+        );
+        progressWriters.allowCoreThreadTimeOut(true);
+        dispatchingHandler.setHandler("/progress", new ProgressRequestHandler(dumpHandler, executor, progressWriters));
+
+        Container rootHandler = dispatchingHandler;
+        ExecutorService requestWorkers = null;
+        if (threadMode.equals(THREADS_VIRTUAL_ALL)) {
+            log.info("Handling requests on virtual threads");
+            requestWorkers = VirtualThreads.newPerTaskExecutor();
+            rootHandler = new ExecutorContainer(dispatchingHandler, requestWorkers);
+        }
 
         Connection connection;
 		try {
-			ContainerServer server = new ContainerServer(dispatchingHandler);
+			ContainerServer server = new ContainerServer(rootHandler);
 			connection = new SocketConnection(server);
 			connection.connect(new InetSocketAddress(port));
 		} catch (IOException e) {
@@ -101,6 +235,34 @@ public class Main {
 
 		log.warn("Stopping the executor service");
 		executor.shutdownNow();
+		housekeeping.shutdownNow();
+		scheduler.shutdown();
+		if (requestWorkers != null) {
+			requestWorkers.shutdownNow();
+		}
+		progressWriters.shutdownNow();
+
+		log.warn("Closing the HTTP client");
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			log.error("Error while closing the HTTP client", e);
+		}
+		if (taskIndex != null) {
+			try {
+				taskIndex.close();
+			} catch (IOException e) {
+				log.error("Error while closing the task index", e);
+			}
+		}
+		if (asyncHttpClient != null) {
+			try {
+				asyncHttpClient.close();
+			} catch (IOException e) {
+				log.error("Error while closing the asynchronous HTTP client", e);
+			}
+			asyncWorkers.shutdownNow();
+		}
 		return 0;
 	}
 
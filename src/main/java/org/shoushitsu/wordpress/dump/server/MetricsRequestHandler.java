@@ -0,0 +1,39 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.shoushitsu.wordpress.dump.Metrics;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exposes the metrics in the Prometheus text format.
+ */
+class MetricsRequestHandler implements Container {
+
+	private final Logger log = LoggerFactory.getLogger(MetricsRequestHandler.class);
+
+	private final Metrics metrics;
+
+	MetricsRequestHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void handle(Request req, Response resp) {
+		resp.setCode(200);
+		resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		try (Writer out = new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8)) {
+			metrics.writeTo(out);
+		} catch (IOException e) {
+			log.error("Error while writing the metrics", e);
+		}
+	}
+
+}
@@ -0,0 +1,362 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.json.JSONObject;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells clients about the progress of a dump task as it happens, instead of making them poll {@code /dump}.
+ * <p>
+ * A client that accepts {@code text/event-stream} gets a stream of server-sent events, one per change,
+ * that ends when the task does. Other clients long-poll: with {@code since} set to the {@code progress}
+ * of the previous response, the request is held until the status changes or a timeout passes.
+ * <p>
+ * Progress changes are reported on the threads that run the dumps, and heartbeats and timeouts on the shared
+ * timer, so none of them touch the sockets: they only note what is to be sent and leave the writing to a bounded
+ * pool of writers. A stream has at most one write queued or running at a time, later changes are sent together
+ * with it, and a client that stalls a write for too long or can't get one queued is dropped. The connection of
+ * a stalled client is closed under the write, so that the writer it held is free again.
+ */
+class ProgressRequestHandler implements Container {
+
+	private static final long POLL_TIMEOUT_MILLIS = 30 * 1000;
+
+	private static final long HEARTBEAT_MILLIS = 15 * 1000;
+
+	/**
+	 * How long a write to an event stream may block before the client is dropped.
+	 */
+	private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private static final long RETRY_MILLIS = 1000;
+
+	private final Logger log = LoggerFactory.getLogger(ProgressRequestHandler.class);
+
+	private final DumpRequestHandler dumpHandler;
+
+	private final ScheduledExecutorService executor;
+
+	private final ExecutorService writers;
+
+	/**
+	 * @param executor only hands work over to the writers, so it may be shared.
+	 * @param writers  writes to the clients; should have a bounded queue, whose overflow drops clients.
+	 */
+	ProgressRequestHandler(DumpRequestHandler dumpHandler, ScheduledExecutorService executor, ExecutorService writers) {
+		this.dumpHandler = dumpHandler;
+		this.executor = executor;
+		this.writers = writers;
+	}
+
+	@Override
+	public void handle(Request req, Response resp) {
+		try {
+			String url = req.getParameter("url");
+			if (url == null) {
+				resp.setCode(400);
+				resp.close();
+				return;
+			}
+			DumpTask task = dumpHandler.getTask(url.trim());
+			if (task == null) {
+				resp.setCode(404);
+				resp.close();
+				return;
+			}
+			String accept = req.getValue("Accept");
+			if (accept != null && accept.contains("text/event-stream")) {
+				new EventStream(task, req, resp).start();
+			} else {
+				new LongPoll(task, resp).start(req.getParameter("since"));
+			}
+		} catch (IOException e) {
+			log.error("Error while handling a progress request", e);
+		}
+	}
+
+	private static JSONObject getStatus(DumpTask task) {
+		JSONObject status = task.getStatusAsJson();
+		// the status constants are shared, so copy before adding to them
+		JSONObject json = new JSONObject(status, JSONObject.getNames(status));
+		json.put("progress", task.getProgress());
+		return json;
+	}
+
+	private final class LongPoll implements DumpTask.ProgressListener, Runnable {
+
+		private final DumpTask task;
+
+		private final Response resp;
+
+		private ScheduledFuture<?> timeout;
+
+		private boolean responded;
+
+		LongPoll(DumpTask task, Response resp) {
+			this.task = task;
+			this.resp = resp;
+		}
+
+		void start(String since) {
+			int sinceProgress;
+			try {
+				sinceProgress = since == null ? task.getProgress() - 1 : Integer.parseInt(since);
+			} catch (NumberFormatException e) {
+				sinceProgress = task.getProgress() - 1;
+			}
+			if (task.isFinished() || task.getProgress() != sinceProgress) {
+				respond();
+				return;
+			}
+			synchronized (this) {
+				task.addProgressListener(this);
+				timeout = executor.schedule(this, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			// it might have changed before the listener was added
+			if (task.getProgress() != sinceProgress) {
+				respond();
+			}
+		}
+
+		@Override
+		public void progressChanged(DumpTask task) {
+			respond();
+		}
+
+		@Override
+		public void run() {
+			respond();
+		}
+
+		private void respond() {
+			synchronized (this) {
+				if (responded) {
+					return;
+				}
+				responded = true;
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+			}
+			task.removeProgressListener(this);
+			submitWrite();
+		}
+
+		private void submitWrite() {
+			try {
+				writers.execute(new Runnable() {
+					@Override
+					public void run() {
+						write();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the writers are busy, the client can wait a bit longer
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						submitWrite();
+					}
+				}, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void write() {
+			JSONObject json = AJsonHandler.makeOkResponse();
+			json.put("task", getStatus(task));
+			resp.setCode(200);
+			resp.setContentType("application/json; charset=utf-8");
+			try (OutputStream out = resp.getOutputStream()) {
+				out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				log.warn("Error while writing a progress response", e);
+			}
+		}
+
+	}
+
+	private final class EventStream implements DumpTask.ProgressListener, Runnable {
+
+		private final DumpTask task;
+
+		private final Request req;
+
+		private final Response resp;
+
+		private final Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+
+		private OutputStream out;
+
+		private ScheduledFuture<?> heartbeat;
+
+		private int lastSentProgress;
+
+		private boolean sentAny;
+
+		private boolean heartbeatDue;
+
+		/**
+		 * Whether a flush is queued or running.
+		 */
+		private boolean writing;
+
+		/**
+		 * When the running flush started, or 0 if none is running.
+		 */
+		private long writeStartedAt;
+
+		/**
+		 * Set for a client that is too slow; the stream is closed by the next flush.
+		 */
+		private boolean dropped;
+
+		private boolean closed;
+
+		EventStream(DumpTask task, Request req, Response resp) {
+			this.task = task;
+			this.req = req;
+			this.resp = resp;
+		}
+
+		void start() throws IOException {
+			resp.setCode(200);
+			resp.setContentType("text/event-stream; charset=utf-8");
+			resp.setValue("Cache-Control", "no-cache");
+			synchronized (this) {
+				out = resp.getOutputStream();
+				task.addProgressListener(this);
+				heartbeat = executor.scheduleWithFixedDelay(this, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+				scheduleFlush();
+			}
+		}
+
+		@Override
+		public synchronized void progressChanged(DumpTask task) {
+			if (!dropped && task.getProgress() != lastSentProgress) {
+				scheduleFlush();
+			}
+		}
+
+		/**
+		 * Sends a comment now and then, so that proxies don't drop a connection that is just waiting,
+		 * and drops the client if a write has been stuck for too long.
+		 */
+		@Override
+		public synchronized void run() {
+			if (writeStartedAt != 0 && System.nanoTime() - writeStartedAt > STALL_NANOS) {
+				drop("stalled");
+				// the write only gives up once the socket is gone
+				try {
+					req.getChannel().getSocket().close();
+				} catch (IOException e) {
+					log.warn("Error while closing a stalled progress event stream", e);
+				}
+				return;
+			}
+			heartbeatDue = true;
+			scheduleFlush();
+		}
+
+		private void scheduleFlush() {
+			if (writing || closed) {
+				return;
+			}
+			writing = true;
+			try {
+				writers.execute(flush);
+			} catch (RejectedExecutionException e) {
+				writing = false;
+				// closing writes too, so it is left to a flush queued by a later heartbeat
+				drop("too many clients");
+			}
+		}
+
+		private void drop(String reason) {
+			if (!dropped) {
+				log.info("Dropping a progress event stream: {}", reason);
+				dropped = true;
+				task.removeProgressListener(this);
+			}
+		}
+
+		/**
+		 * Runs on a writer: sends whatever is due, or closes the stream.
+		 */
+		private void flush() {
+			StringBuilder events = new StringBuilder();
+			boolean finish;
+			synchronized (this) {
+				writeStartedAt = System.nanoTime();
+				finish = dropped;
+				if (!dropped) {
+					int progress = task.getProgress();
+					if (!sentAny || progress != lastSentProgress) {
+						sentAny = true;
+						lastSentProgress = progress;
+						events.append("event: progress\ndata: ").append(getStatus(task)).append("\n\n");
+						finish = task.isFinished();
+					} else if (heartbeatDue) {
+						events.append(":\n\n");
+					}
+					heartbeatDue = false;
+				}
+			}
+			if (events.length() > 0) {
+				try {
+					out.write(events.toString().getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				} catch (IOException e) {
+					log.info("Progress event stream closed by the client: {}", e.toString());
+					finish = true;
+				}
+			}
+			if (finish) {
+				close();
+			}
+			synchronized (this) {
+				writing = false;
+				writeStartedAt = 0;
+				// changes that came in while writing were left for this flush to pick up,
+				// and a client dropped while its write was stuck still has to be closed
+				if (!closed && (dropped || task.getProgress() != lastSentProgress)) {
+					scheduleFlush();
+				}
+			}
+		}
+
+		private void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				heartbeat.cancel(false);
+			}
+			task.removeProgressListener(this);
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.warn("Error while closing a progress event stream", e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pooled HTTP client shared by all dump tasks of the server, so that connections
+ * to the API host are kept alive and reused across tasks.
+ * <p>
+ * Limits are read from system properties:
+ * {@code wpdump.http.maxTotal}, {@code wpdump.http.maxPerRoute},
+ * {@code wpdump.http.keepAliveSeconds} and {@code wpdump.http.idleSeconds}.
+ * All requests go through {@code wpdump.http.proxy}, given as {@code host:port}, if it is set.
+ */
+class SharedHttpClient implements Runnable, Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(SharedHttpClient.class);
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpClient client;
+
+	private final long idleMillis;
+
+	SharedHttpClient(int maxTotal, int maxPerRoute, final long keepAliveMillis, long idleMillis, HttpHost proxy) {
+		this.idleMillis = idleMillis;
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setProxy(proxy)
+				.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+					@Override
+					public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+						HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+						while (it.hasNext()) {
+							HeaderElement element = it.nextElement();
+							if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+								try {
+									return Math.min(Long.parseLong(element.getValue()) * 1000, keepAliveMillis);
+								} catch (NumberFormatException ignore) {
+									// fall back to the default
+								}
+							}
+						}
+						return keepAliveMillis;
+					}
+				})
+				.build();
+		log.info("Created HTTP connection pool: max total {}, max per route {}", maxTotal, maxPerRoute);
+		if (proxy != null) {
+			log.info("Sending HTTP requests through proxy {}", proxy);
+		}
+	}
+
+	static SharedHttpClient fromSystemProperties() {
+		return new SharedHttpClient(
+				Integer.getInteger("wpdump.http.maxTotal", 64),
+				Integer.getInteger("wpdump.http.maxPerRoute", 32),
+				Long.getLong("wpdump.http.keepAliveSeconds", 30) * 1000,
+				Long.getLong("wpdump.http.idleSeconds", 30) * 1000,
+				proxyFromSystemProperties()
+		);
+	}
+
+	/**
+	 * @return the proxy set with {@code wpdump.http.proxy}, or {@code null} if there is none.
+	 */
+	static HttpHost proxyFromSystemProperties() {
+		String proxy = System.getProperty("wpdump.http.proxy");
+		if (proxy == null) {
+			return null;
+		}
+		int colon = proxy.lastIndexOf(':');
+		if (colon < 0) {
+			return new HttpHost(proxy);
+		}
+		return new HttpHost(proxy.substring(0, colon), Integer.parseInt(proxy.substring(colon + 1)));
+	}
+
+	CloseableHttpClient getClient() {
+		return client;
+	}
+
+	void scheduleEviction(ScheduledExecutorService executor) {
+		executor.scheduleWithFixedDelay(this, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void run() {
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+	}
+
+}
@@ -3,26 +3,41 @@ package org.shoushitsu.wordpress.dump.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.NavigableSet;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Purges items after a delay. Pending items are kept in a hashed timing wheel with a slot per tick,
+ * so enqueueing takes constant time no matter how many items are pending, and each run only looks
+ * at the slots of the ticks that have passed since the previous run.
+ * <p>
+ * {@link #enqueue} may be called from any thread; {@link #run} must be called from one thread at a time,
+ * normally every {@link #TICK_MILLIS} ms.
+ */
 abstract class TaskCleanupQueue<I> implements Runnable {
 
-	private final class Entry implements Comparable<Entry> {
+	static final long TICK_MILLIS = 1000;
+
+	/**
+	 * With one-second ticks, a turn of the wheel takes about 8.5 minutes;
+	 * items with longer delays stay in their slot for several turns.
+	 */
+	private static final int WHEEL_SIZE = 512;
+
+	private final class Entry {
 
 		private final I item;
 
-		private final long timestamp;
+		private final long deadlineTick;
 
-		Entry(I item, long timestamp) {
+		Entry(I item, long deadlineTick) {
 			this.item = item;
-			this.timestamp = timestamp;
-		}
-
-		@Override
-		public int compareTo(Entry other) {
-			return Long.compare(this.timestamp, other.timestamp);
+			this.deadlineTick = deadlineTick;
 		}
 
 	}
@@ -31,20 +46,97 @@ abstract class TaskCleanupQueue<I> implements Runnable {
 
 	protected final Logger log = LoggerFactory.getLogger(TaskCleanupQueue.class.getName() + '.' + INDEX_SOURCE.incrementAndGet());
 
-	private final NavigableSet<Entry> queue = new ConcurrentSkipListSet<>();
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * Entries that haven't been put on the wheel yet. Only the thread doing the runs touches the wheel.
+	 */
+	private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+
+	private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+	private long lastTick;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	TaskCleanupQueue() {
+		for (int i = 0; i < WHEEL_SIZE; ++i) {
+			wheel.add(new ArrayList<Entry>());
+		}
+	}
 
 	void enqueue(I item, long delay) {
 		log.info("Enqueueing item {} to be purged in {} ms", item, delay);
-		queue.add(new Entry(item, System.currentTimeMillis() + delay));
+		size.incrementAndGet();
+		// round up, so that an item is never purged early
+		incoming.add(new Entry(item, (elapsedMillis() + delay + TICK_MILLIS - 1) / TICK_MILLIS));
 	}
 
 	@Override
 	public void run() {
+		long currentTick = elapsedMillis() / TICK_MILLIS;
+		List<I> due = new ArrayList<>();
+
 		Entry entry;
-		while ((entry = queue.pollFirst()) != null && entry.timestamp < System.currentTimeMillis()) {
-			log.info("Purging item {}", entry.item);
-			purge(entry.item);
+		while ((entry = incoming.poll()) != null) {
+			if (entry.deadlineTick <= lastTick) {
+				// its slot has already been visited
+				due.add(entry.item);
+			} else {
+				wheel.get(slotOf(entry.deadlineTick)).add(entry);
+			}
 		}
+
+		// if the runs have fallen behind by a whole turn, visiting every slot once is enough
+		long lastVisitedTick = Math.min(currentTick, lastTick + WHEEL_SIZE);
+		for (long tick = lastTick + 1; tick <= lastVisitedTick; ++tick) {
+			collectDue(wheel.get(slotOf(tick)), currentTick, due);
+		}
+		lastTick = currentTick;
+
+		if (!due.isEmpty()) {
+			size.addAndGet(-due.size());
+			log.info("Purging {} items", due.size());
+			for (I item : due) {
+				log.info("Purging item {}", item);
+				try {
+					purge(item);
+				} catch (RuntimeException e) {
+					log.error("Failed to purge item " + item, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the items that are due from the slot to the list, compacting the slot in place.
+	 */
+	private void collectDue(List<Entry> slot, long currentTick, List<I> due) {
+		int kept = 0;
+		for (int i = 0, size = slot.size(); i < size; ++i) {
+			Entry entry = slot.get(i);
+			if (entry.deadlineTick <= currentTick) {
+				due.add(entry.item);
+			} else {
+				slot.set(kept++, entry);
+			}
+		}
+		slot.subList(kept, slot.size()).clear();
+	}
+
+	/**
+	 * @return how many items are waiting to be purged.
+	 */
+	int size() {
+		return size.get();
+	}
+
+	private long elapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	private static int slotOf(long tick) {
+		return (int) (tick & (WHEEL_SIZE - 1));
 	}
 
 	protected abstract void purge(I item);
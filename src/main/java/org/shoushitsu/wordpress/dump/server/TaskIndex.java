@@ -0,0 +1,226 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only log of finished dump tasks, so that a restarted server can serve the books
+ * that are still in the cache. Every change is a record appended to the file; the log is compacted
+ * to the live records when it's opened, so it doesn't grow across restarts.
+ * <p>
+ * A record that was cut short by a crash is ignored, along with everything after it.
+ */
+class TaskIndex implements Closeable {
+
+	static final class Record {
+
+		final String url;
+
+		final boolean ready;
+
+		final String bookTitle;
+
+		final String contentHash;
+
+		/**
+		 * For a failed task, what's left of its book, if anything.
+		 */
+		final String cacheKey;
+
+		final long bookLength;
+
+		final long bookWrittenAt;
+
+		/**
+		 * Wall clock time, in milliseconds.
+		 */
+		final long expiresAt;
+
+		Record(
+				String url,
+				boolean ready,
+				String bookTitle,
+				String contentHash,
+				String cacheKey,
+				long bookLength,
+				long bookWrittenAt,
+				long expiresAt
+		) {
+			this.url = url;
+			this.ready = ready;
+			this.bookTitle = bookTitle;
+			this.contentHash = contentHash;
+			this.cacheKey = cacheKey;
+			this.bookLength = bookLength;
+			this.bookWrittenAt = bookWrittenAt;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	private static final byte READY = 1;
+	private static final byte FAILED = 2;
+	private static final byte REMOVED = 3;
+
+	private final Logger log = LoggerFactory.getLogger(TaskIndex.class);
+
+	private final List<Record> live = new ArrayList<>();
+
+	private final List<Record> expired = new ArrayList<>();
+
+	private final DataOutputStream out;
+
+	TaskIndex(Path file) throws IOException {
+		Map<String, Record> recordByUrl = read(file);
+		long now = System.currentTimeMillis();
+		for (Record record : recordByUrl.values()) {
+			(record.expiresAt > now ? live : expired).add(record);
+		}
+		log.info("Loaded {} live and {} expired tasks from {}", live.size(), expired.size(), file);
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			for (Record record : live) {
+				write(compacted, record);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(file, StandardOpenOption.APPEND)
+		));
+	}
+
+	/**
+	 * @return the tasks that were finished before the index was opened and haven't expired yet.
+	 */
+	Collection<Record> getLiveRecords() {
+		return live;
+	}
+
+	/**
+	 * @return the tasks that expired while the server was down; their books should be removed from the cache.
+	 */
+	Collection<Record> getExpiredRecords() {
+		return expired;
+	}
+
+	synchronized void ready(
+			String url,
+			String bookTitle,
+			String contentHash,
+			String cacheKey,
+			long bookLength,
+			long bookWrittenAt,
+			long expiresAt
+	) {
+		append(new Record(url, true, bookTitle, contentHash, cacheKey, bookLength, bookWrittenAt, expiresAt));
+	}
+
+	/**
+	 * @param cacheKey the key of the unfinished book, or {@code null} if it wasn't created.
+	 */
+	synchronized void failed(String url, String cacheKey, long expiresAt) {
+		append(new Record(url, false, null, null, cacheKey, -1, 0, expiresAt));
+	}
+
+	synchronized void removed(String url) {
+		try {
+			out.writeByte(REMOVED);
+			out.writeUTF(url);
+			out.flush();
+		} catch (IOException e) {
+			log.error("Failed to record a removed task", e);
+		}
+	}
+
+	private void append(Record record) {
+		try {
+			write(out, record);
+			out.flush();
+		} catch (IOException e) {
+			log.error("Failed to record a finished task", e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	private static void write(DataOutputStream out, Record record) throws IOException {
+		out.writeByte(record.ready ? READY : FAILED);
+		out.writeUTF(record.url);
+		if (record.ready) {
+			out.writeUTF(record.bookTitle == null ? "" : record.bookTitle);
+			out.writeUTF(record.contentHash);
+			out.writeUTF(record.cacheKey);
+			out.writeLong(record.bookLength);
+			out.writeLong(record.bookWrittenAt);
+		} else {
+			out.writeUTF(record.cacheKey == null ? "" : record.cacheKey);
+		}
+		out.writeLong(record.expiresAt);
+	}
+
+	private Map<String, Record> read(Path file) throws IOException {
+		Map<String, Record> recordByUrl = new LinkedHashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				int type = in.read();
+				if (type == -1) {
+					break;
+				}
+				String url = in.readUTF();
+				switch (type) {
+					case READY:
+						String bookTitle = in.readUTF();
+						String contentHash = in.readUTF();
+						String cacheKey = in.readUTF();
+						long bookLength = in.readLong();
+						long bookWrittenAt = in.readLong();
+						recordByUrl.put(url, new Record(
+								url, true, bookTitle, contentHash, cacheKey, bookLength, bookWrittenAt, in.readLong()
+						));
+						break;
+					case FAILED:
+						String leftoverKey = in.readUTF();
+						recordByUrl.put(url, new Record(
+								url, false, null, null, leftoverKey.isEmpty() ? null : leftoverKey, -1, 0, in.readLong()
+						));
+						break;
+					case REMOVED:
+						recordByUrl.remove(url);
+						break;
+					default:
+						log.warn("Unknown record type {} in {}, ignoring the rest of the file", type, file);
+						return recordByUrl;
+				}
+			}
+		} catch (NoSuchFileException e) {
+			log.info("No task index at {}, starting with an empty one", file);
+		} catch (EOFException e) {
+			log.warn("Task index {} ends with an incomplete record, ignoring it", file);
+		}
+		return recordByUrl;
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.shoushitsu.wordpress.dump.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads, which are looked up reflectively so that the server
+ * still builds and runs on JVMs without them.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Tries them out rather than looking for the methods: on JDK 19 and 20 they are there,
+	 * but throw unless preview features are enabled.
+	 */
+	static boolean isAvailable() {
+		try {
+			newThreadFactory();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread for each task.
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads.
+	 */
+	static ExecutorService newPerTaskExecutor() {
+		return (ExecutorService) invoke(Executors.class, null, "newVirtualThreadPerTaskExecutor");
+	}
+
+	/**
+	 * @return a factory of unstarted virtual threads.
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads.
+	 */
+	static ThreadFactory newThreadFactory() {
+		Object builder = invoke(Thread.class, null, "ofVirtual");
+		try {
+			// the builder's own class is not accessible, its public interface is
+			return (ThreadFactory) invoke(Class.forName("java.lang.Thread$Builder"), builder, "factory");
+		} catch (ClassNotFoundException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+
+	private static Object invoke(Class<?> type, Object target, String methodName) {
+		try {
+			Method method = type.getMethod(methodName);
+			return method.invoke(target);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException("Failed to set up virtual threads", e.getCause());
+		}
+	}
+
+}